@@ -0,0 +1,242 @@
+package littlemansoftware.bpppngencoder.util;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Encodes many images on an executor.
+ *
+ * <p>Each image is encoded by its own {@link BppPngEncoder} with the
+ * settings of the batch, using the {@link EncoderContext} of the worker
+ * thread, so the buffers are reused per thread. At most
+ * {@code maxInFlight} images are between submission and completion at
+ * any time; submitting more blocks until one is done, which bounds the
+ * pixel and output buffers held, and with a lazy {@link Iterable} also
+ * the Bitmaps rendered ahead.</p>
+ *
+ * <p>The settings must not be changed while a batch is running.</p>
+ */
+public class BatchEncoder {
+
+    /** Receives the PNGs of {@link #encodeAll(Iterable, Callback)}. */
+    public interface Callback {
+        /**
+         * Called for each image in input order, one call at a time.
+         *
+         * @param index Position of the image in the input.
+         * @param png The PNG bytes, or null if there was a problem.
+         */
+        void onEncoded(int index, byte[] png);
+    }
+
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final Semaphore permits;
+
+    /** Same defaults as a new encoder. */
+    private CompressionSettings settings = new BppPngEncoder().getCompressionSettings();
+    private Binarizer binarizer;
+    private PngCache cache;
+
+    /**
+     * @param executor Runs the encodes, e.g. a fixed pool with a thread per core.
+     * @param maxInFlight Most images submitted but not yet completed, at least 1.
+     */
+    public BatchEncoder(ExecutorService executor, int maxInFlight) {
+        this.executor = executor;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.permits = new Semaphore(this.maxInFlight);
+    }
+
+    /**
+     * Set level, strategy and filter used for every image
+     *
+     * @param settings the combination to use
+     */
+    public void setCompressionSettings(CompressionSettings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Retrieve level, strategy and filter
+     *
+     * @return the combination used
+     */
+    public CompressionSettings getCompressionSettings() {
+        return settings;
+    }
+
+    /**
+     * Set how colours become black or white, see {@link BppPngEncoder#setBinarizer(Binarizer)}
+     *
+     * @param binarizer the binarizer, or null for exact black only
+     */
+    public void setBinarizer(Binarizer binarizer) {
+        this.binarizer = binarizer;
+    }
+
+    /**
+     * Set a cache shared by the encodes, see {@link BppPngEncoder#setCache(PngCache)}
+     *
+     * @param cache the cache, or null
+     */
+    public void setCache(PngCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Retrieve the most images in flight
+     *
+     * @return the limit given to the constructor
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Submit one image, blocking while the limit of images in flight is reached.
+     *
+     * @param image The image.
+     * @return the future PNG bytes, null if there was a problem
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    public Future<byte[]> submit(Bitmap image) throws InterruptedException {
+        permits.acquire();
+        try {
+            return executor.submit(new EncodeTask(image, -1, null));
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Submit images, blocking while the limit of images in flight is
+     * reached. The futures are in input order. Completed futures keep
+     * their PNG until dropped by the caller; that memory is not bounded.
+     *
+     * @param images The images.
+     * @return the future PNGs
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    public List<Future<byte[]>> submitAll(Iterable<? extends Bitmap> images) throws InterruptedException {
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+        for (Bitmap image : images) {
+            futures.add(submit(image));
+        }
+        return futures;
+    }
+
+    /**
+     * Encode images and hand each PNG to the callback in input order.
+     * An image counts as in flight until its callback returned, so PNGs
+     * finished ahead of their turn are bounded by the limit too.
+     * Returns once every callback has been made.
+     *
+     * @param images The images.
+     * @param callback Receives the PNGs.
+     * @return the number of images
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int encodeAll(Iterable<? extends Bitmap> images, Callback callback) throws InterruptedException {
+        Delivery delivery = new Delivery(callback);
+        int count = 0;
+        for (Bitmap image : images) {
+            permits.acquire();
+            try {
+                executor.submit(new EncodeTask(image, count, delivery));
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+            count++;
+        }
+        delivery.await(count);
+        return count;
+    }
+
+    /**
+     * Encode one image. Safe to call from any number of threads.
+     *
+     * @param image The image.
+     * @return the PNG bytes, or null if there was a problem
+     */
+    public byte[] encode(Bitmap image) {
+        BppPngEncoder encoder = new BppPngEncoder();
+        encoder.setCompressionSettings(settings);
+        encoder.setBinarizer(binarizer);
+        encoder.setCache(cache);
+        encoder.setImage(image);
+        return encoder.pngEncode();
+    }
+
+    private final class EncodeTask implements Callable<byte[]> {
+        private final Bitmap image;
+        private final int index;
+        private final Delivery delivery;
+
+        EncodeTask(Bitmap image, int index, Delivery delivery) {
+            this.image = image;
+            this.index = index;
+            this.delivery = delivery;
+        }
+
+        @Override
+        public byte[] call() {
+            byte[] png = null;
+            try {
+                png = encode(image);
+                return png;
+            } catch (RuntimeException e) {
+                System.err.println(e.toString());
+                return null;
+            } finally {
+                if (delivery != null) {
+                    delivery.done(index, png);
+                } else {
+                    permits.release();
+                }
+            }
+        }
+    }
+
+    /** Hands PNGs to the callback in input order. */
+    private final class Delivery {
+        private final Callback callback;
+        private final HashMap<Integer, byte[]> ready = new HashMap<Integer, byte[]>();
+        private int next;
+
+        Delivery(Callback callback) {
+            this.callback = callback;
+        }
+
+        synchronized void done(int index, byte[] png) {
+            ready.put(index, png);
+            while (ready.containsKey(next)) {
+                byte[] p = ready.remove(next);
+                try {
+                    callback.onEncoded(next, p);
+                } catch (RuntimeException e) {
+                    System.err.println(e.toString());
+                } finally {
+                    next++;
+                    permits.release();
+                }
+            }
+            notifyAll();
+        }
+
+        synchronized void await(int count) throws InterruptedException {
+            while (next < count) {
+                wait();
+            }
+        }
+    }
+}
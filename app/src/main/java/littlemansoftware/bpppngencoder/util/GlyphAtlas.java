@@ -0,0 +1,208 @@
+package littlemansoftware.bpppngencoder.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.text.TextPaint;
+
+import java.util.HashMap;
+
+/**
+ * Pre-binarized glyphs of one typeface at one font size.
+ *
+ * <p>Each glyph is drawn once, the first time it is needed, with the same
+ * paint settings {@link LCDManager} uses for its layouts, and kept as
+ * packed 1bpp rows: a set bit is lit (white), as in the scanlines of
+ * {@link BppPngEncoder}. {@link TextRasterizer} composes text from these
+ * rows without drawing to a Bitmap.</p>
+ *
+ * <p>A glyph's rows cover the whole line height and {@link #getPad()}
+ * extra pixels on both sides of its advance, so overhangs and fake bold
+ * are kept.</p>
+ */
+public class GlyphAtlas {
+
+    private final Typeface typeface;
+    private final int fontSize;
+
+    private final TextPaint paint = new TextPaint();
+
+    /** Baseline from the top of a line. */
+    private final int baseline;
+
+    /** Height of a line and of every glyph. */
+    private final int lineHeight;
+
+    /** Extra pixels drawn left and right of each advance. */
+    private final int pad;
+
+    /** Width of a glyph box. */
+    private final int boxWidth;
+
+    /** Bytes per packed glyph row. */
+    private final int rowBytes;
+
+    /** Glyphs of the ASCII range, the rest go in the map. */
+    private final Glyph[] ascii = new Glyph[128];
+    private final HashMap<Character, Glyph> others = new HashMap<Character, Glyph>();
+
+    /** Scratch used to draw a glyph. */
+    private Bitmap bitmap;
+    private Canvas canvas;
+    private int[] pixels;
+
+    /**
+     * @param typeface The typeface to draw with.
+     * @param fontSize The text size in pixels.
+     */
+    public GlyphAtlas(Typeface typeface, int fontSize) {
+        this.typeface = typeface;
+        this.fontSize = fontSize;
+
+        paint.setStyle(Paint.Style.FILL);
+        paint.setColor(Color.WHITE);
+        paint.setTextSize(fontSize);
+        paint.setTypeface(typeface);
+        paint.setFakeBoldText(true);
+
+        Paint.FontMetricsInt metrics = paint.getFontMetricsInt();
+        baseline = -metrics.ascent;
+        lineHeight = Math.max(1, metrics.descent - metrics.ascent);
+        pad = fontSize / 8 + 1;
+        boxWidth = (int) Math.ceil(paint.measureText("M")) + 2 * pad;
+        rowBytes = BitPacker.bytesPerRow(boxWidth);
+    }
+
+    /**
+     * Retrieve the typeface
+     *
+     * @return the typeface the glyphs are drawn with
+     */
+    public Typeface getTypeface() {
+        return typeface;
+    }
+
+    /**
+     * Retrieve the font size
+     *
+     * @return the text size in pixels
+     */
+    public int getFontSize() {
+        return fontSize;
+    }
+
+    /**
+     * Retrieve the line height
+     *
+     * @return rows per line of text
+     */
+    public int getLineHeight() {
+        return lineHeight;
+    }
+
+    /**
+     * Retrieve the pad
+     *
+     * @return pixels a glyph box extends left of the pen position
+     */
+    public int getPad() {
+        return pad;
+    }
+
+    /**
+     * Retrieve the glyph box width
+     *
+     * @return pixels per glyph row
+     */
+    public int getBoxWidth() {
+        return boxWidth;
+    }
+
+    /**
+     * Retrieve the bytes per packed glyph row
+     *
+     * @return bytes per row of {@link #bits(char)}
+     */
+    public int getRowBytes() {
+        return rowBytes;
+    }
+
+    /**
+     * The advance of a character, how far the pen moves after it.
+     *
+     * @param c The character.
+     * @return the advance in pixels
+     */
+    public synchronized int advance(char c) {
+        return glyph(c).advance;
+    }
+
+    /**
+     * The width of a run of text.
+     *
+     * @param text The text.
+     * @param start Index of the first character.
+     * @param end Index after the last character.
+     * @return the sum of the advances in pixels
+     */
+    public synchronized int width(CharSequence text, int start, int end) {
+        int w = 0;
+        for (int i = start; i < end; i++) {
+            w += glyph(text.charAt(i)).advance;
+        }
+        return w;
+    }
+
+    /**
+     * The packed rows of a character's glyph, {@link #getLineHeight()}
+     * rows of {@link #getRowBytes()} bytes. The array must not be modified.
+     *
+     * @param c The character.
+     * @return the glyph rows
+     */
+    public synchronized byte[] bits(char c) {
+        return glyph(c).bits;
+    }
+
+    /** Called with the lock held. */
+    private Glyph glyph(char c) {
+        Glyph g = c < ascii.length ? ascii[c] : others.get(c);
+        if (g == null) {
+            g = draw(c);
+            if (c < ascii.length) {
+                ascii[c] = g;
+            } else {
+                others.put(c, g);
+            }
+        }
+        return g;
+    }
+
+    private Glyph draw(char c) {
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(boxWidth, lineHeight, Bitmap.Config.RGB_565);
+            canvas = new Canvas(bitmap);
+            pixels = new int[boxWidth * lineHeight];
+        }
+        String s = String.valueOf(c);
+        bitmap.eraseColor(Color.BLACK);
+        canvas.drawText(s, pad, baseline, paint);
+        bitmap.getPixels(pixels, 0, boxWidth, 0, 0, boxWidth, lineHeight);
+
+        Glyph g = new Glyph();
+        g.advance = Math.round(paint.measureText(s));
+        g.bits = new byte[rowBytes * lineHeight];
+        int pos = 0;
+        for (int y = 0; y < lineHeight; y++) {
+            pos = BitPacker.packRow(pixels, y * boxWidth, boxWidth, g.bits, pos);
+        }
+        return g;
+    }
+
+    private static final class Glyph {
+        byte[] bits;
+        int advance;
+    }
+}
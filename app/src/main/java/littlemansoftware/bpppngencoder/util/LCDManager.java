@@ -11,6 +11,11 @@ import android.text.StaticLayout;
 import android.text.TextPaint;
 import android.util.Log;
 
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import static android.R.attr.textSize;
 
 /**
@@ -20,6 +25,64 @@ import static android.R.attr.textSize;
 public class LCDManager {
     static final String TAG = LCDManager.class.getName();
 
+    /** Font asset used for the LCD text. */
+    static final String FONT_ASSET = "MONOS.TTF";
+
+    /** Most layouts kept, enough for the screens a display cycles through. */
+    static final int MAX_LAYOUTS = 32;
+
+    /** Most paints kept, one per font size and typeface in use. */
+    static final int MAX_PAINTS = 8;
+
+    /** Most sizes of surface kept, one per display in use. */
+    static final int MAX_SURFACE_SIZES = 4;
+
+    /** Most idle bitmaps kept per size, enough for a frame being encoded while the next is drawn. */
+    static final int MAX_SURFACES = 2;
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    /** The font, loaded from the assets once per process. */
+    private static Typeface typeface;
+
+    /** Recently used layouts, keyed on text, size, width and typeface. */
+    private static final Map<LayoutKey, StaticLayout> layouts = new LinkedHashMap<LayoutKey, StaticLayout>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LayoutKey, StaticLayout> eldest) {
+            return size() > MAX_LAYOUTS;
+        }
+    };
+
+    /** Recently used paints, keyed on size and typeface; the text is left null. */
+    private static final Map<LayoutKey, TextPaint> paints = new LinkedHashMap<LayoutKey, TextPaint>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LayoutKey, TextPaint> eldest) {
+            return size() > MAX_PAINTS;
+        }
+    };
+
+    /** Glyph atlases, keyed on size and typeface like the paints. */
+    private static final Map<LayoutKey, GlyphAtlas> atlases = new LinkedHashMap<LayoutKey, GlyphAtlas>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LayoutKey, GlyphAtlas> eldest) {
+            return size() > MAX_PAINTS;
+        }
+    };
+
+    /** Bitmaps handed back by {@link #releaseBitmap(Bitmap)}, keyed on size and config. */
+    private static final Map<SurfaceKey, ArrayDeque<Bitmap>> surfaces = new LinkedHashMap<SurfaceKey, ArrayDeque<Bitmap>>(8, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SurfaceKey, ArrayDeque<Bitmap>> eldest) {
+            return size() > MAX_SURFACE_SIZES;
+        }
+    };
+
+    /** Idle canvases, not bound to any bitmap. */
+    private static final ArrayDeque<Canvas> canvases = new ArrayDeque<Canvas>();
+
+    /** The white frame around the display; only read once set up. */
+    private static final Paint borderPaint = newBorderPaint();
+
     private Context context;
 
     public LCDManager(Context context) {
@@ -34,8 +97,7 @@ public class LCDManager {
 
         Log.v(TAG, "Generating Bitmap with LCD Capabilities. Width: " + lcdWidth + " height: " + lcdHeight + " TextSize: " + textSize + " Text: " + textToPrint);
 
-        Typeface fontAsset = Typeface.createFromAsset(context.getAssets(), "MONOS.TTF");
-        Typeface typeFaceDefault = Typeface.create(fontAsset, Typeface.NORMAL);
+        Typeface typeFaceDefault = getTypeface(context);
 
         StaticLayout mTextLayout = buildStaticLayout(fontSize,textToPrint,lcdWidth,typeFaceDefault);
 
@@ -46,9 +108,9 @@ public class LCDManager {
             mTextLayout=buildStaticLayout(calculateFontSize(lNewLines),textToPrint,lcdWidth,typeFaceDefault);
         }
 
-        // Create bitmap and canvas to draw to
-        Bitmap b = Bitmap.createBitmap(lcdWidth, lcdHeight, Bitmap.Config.RGB_565);
-        Canvas c = new Canvas(b);
+        // Get bitmap and canvas to draw to
+        Bitmap b = obtainBitmap(lcdWidth, lcdHeight, Bitmap.Config.RGB_565);
+        Canvas c = obtainCanvas(b);
 
         // Draw background
 //        Paint paintFill = new Paint(Paint.ANTI_ALIAS_FLAG );
@@ -59,11 +121,7 @@ public class LCDManager {
 //        c.drawPaint(paintFill);
 
         // Border in canvas
-        Paint paintStroke = new Paint(Paint.ANTI_ALIAS_FLAG );
-        paintStroke.setStyle(Paint.Style.STROKE);
-        paintStroke.setStrokeWidth(2); // set stroke width
-        paintStroke.setColor(Color.WHITE);
-        c.drawRect(0, 0, lcdWidth, lcdHeight, paintStroke);
+        c.drawRect(0, 0, lcdWidth, lcdHeight, borderPaint);
 
         // Draw text
         c.save();
@@ -71,10 +129,143 @@ public class LCDManager {
         c.translate(0, yAxis);
         mTextLayout.draw(c);
         c.restore();
+        releaseCanvas(c);
+
+        return b;
+    }
+
+    /**
+     * Hand back a Bitmap from {@link #drawText(String[], int, int)} once it
+     * is no longer needed, e.g. when {@link BppPngEncoder} has encoded it.
+     * A later drawText of the same size clears it and draws over it, so
+     * it must not be used or recycled afterwards. Bitmaps that cannot be
+     * drawn on are ignored, as are any beyond the few kept per size.
+     *
+     * @param bitmap The bitmap, or null.
+     */
+    public static void releaseBitmap(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        SurfaceKey key = new SurfaceKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        synchronized (surfaces) {
+            ArrayDeque<Bitmap> free = surfaces.get(key);
+            if (free == null) {
+                free = new ArrayDeque<Bitmap>(MAX_SURFACES);
+                surfaces.put(key, free);
+            }
+            if (free.size() < MAX_SURFACES && !containsBitmap(free, bitmap)) {
+                free.push(bitmap);
+            }
+        }
+    }
 
+    /**
+     * Get a black bitmap to draw on: a handed back one of the size and
+     * config, cleared, or a new one.
+     */
+    private static Bitmap obtainBitmap(int width, int height, Bitmap.Config config) {
+        Bitmap b = null;
+        synchronized (surfaces) {
+            ArrayDeque<Bitmap> free = surfaces.get(new SurfaceKey(width, height, config));
+            if (free != null) {
+                b = free.poll();
+            }
+        }
+        if (b == null || b.isRecycled()) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        b.eraseColor(Color.BLACK);
         return b;
     }
 
+    /** Get a canvas drawing into bitmap. */
+    private static Canvas obtainCanvas(Bitmap bitmap) {
+        Canvas c;
+        synchronized (surfaces) {
+            c = canvases.poll();
+        }
+        if (c == null) {
+            return new Canvas(bitmap);
+        }
+        c.setBitmap(bitmap);
+        return c;
+    }
+
+    /** Unbind a canvas from its bitmap and keep it for the next drawText. */
+    private static void releaseCanvas(Canvas c) {
+        c.setBitmap(null);
+        synchronized (surfaces) {
+            if (canvases.size() < MAX_SURFACE_SIZES * MAX_SURFACES) {
+                canvases.push(c);
+            }
+        }
+    }
+
+    /** Called with the surfaces lock held. */
+    private static boolean containsBitmap(ArrayDeque<Bitmap> free, Bitmap bitmap) {
+        for (Bitmap b : free) {
+            if (b == bitmap) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Paint newBorderPaint() {
+        Paint paintStroke = new Paint(Paint.ANTI_ALIAS_FLAG );
+        paintStroke.setStyle(Paint.Style.STROKE);
+        paintStroke.setStrokeWidth(2); // set stroke width
+        paintStroke.setColor(Color.WHITE);
+        return paintStroke;
+    }
+
+    /**
+     * Render text like {@link #drawText(String[], int, int)}, but straight
+     * into packed 1bpp rows for {@link BppPngEncoder#setPackedImage(byte[], int, int)},
+     * without a Bitmap. Glyphs are drawn once per font size into a
+     * {@link GlyphAtlas} and reused for every later frame.
+     *
+     * @param lines The lines of text.
+     * @param lcdWidth Image width.
+     * @param lcdHeight Image height.
+     * @param dst Rows to reuse, or null; used when large enough.
+     * @return the packed rows
+     */
+    public byte[] drawTextPacked(String[] lines, int lcdWidth, int lcdHeight, byte[] dst) {
+        Typeface typeFaceDefault = getTypeface(context);
+
+        GlyphAtlas atlas = getAtlas(calculateFontSize(lines.length), typeFaceDefault);
+        List<String> wrapped = TextRasterizer.wrap(lines, atlas, lcdWidth);
+
+        // There are more lines, recalculate size
+        if (wrapped.size() > lines.length) {
+            atlas = getAtlas(calculateFontSize(wrapped.size()), typeFaceDefault);
+            wrapped = TextRasterizer.wrap(lines, atlas, lcdWidth);
+        }
+
+        return TextRasterizer.compose(wrapped, atlas, lcdWidth, lcdHeight, true, dst);
+    }
+
+    /**
+     * Get the glyph atlas of a font size, creating it on first use.
+     *
+     * @param fontSize The text size in pixels.
+     * @param typeFaceDefault The typeface.
+     * @return the shared atlas
+     */
+    public static GlyphAtlas getAtlas(int fontSize, Typeface typeFaceDefault) {
+        LayoutKey key = new LayoutKey(null, fontSize, 0, typeFaceDefault);
+        synchronized (layouts) {
+            GlyphAtlas atlas = atlases.get(key);
+            if (atlas == null) {
+                atlas = new GlyphAtlas(typeFaceDefault, fontSize);
+                atlases.put(key, atlas);
+            }
+            return atlas;
+        }
+    }
+
     private int calculateFontSize(int iNumberLines) {
         int size=25;
         switch (iNumberLines){
@@ -90,28 +281,142 @@ public class LCDManager {
     }
 
     private String calculateTextToPrint(String[] lines ) {
-        String textToPrint="";
+        StringBuilder textToPrint = new StringBuilder();
 
         Log.d(TAG, "DisplayScreen Lines: " + lines.length);
         for(int i=0;i<lines.length;i++) {
             Log.d(TAG, "DisplayScreen Line " + i +": " + lines[i]);
-            textToPrint+=lines[i];
-            if(i<lines.length-1) textToPrint+=System.getProperty("line.separator");
+            textToPrint.append(lines[i]);
+            if(i<lines.length-1) textToPrint.append(LINE_SEPARATOR);
         }
-        return textToPrint;
+        return textToPrint.toString();
     }
 
+    /**
+     * The LCD font. It is read from the assets on first use only; creating
+     * a typeface from an asset is the slowest step of a screen update.
+     *
+     * @param context Any context of the application.
+     * @return the shared typeface
+     */
+    public static synchronized Typeface getTypeface(Context context) {
+        if (typeface == null) {
+            Typeface fontAsset = Typeface.createFromAsset(context.getAssets(), FONT_ASSET);
+            typeface = Typeface.create(fontAsset, Typeface.NORMAL);
+        }
+        return typeface;
+    }
+
+    /**
+     * Get the layout of a text, reusing a recent one with the same text,
+     * size, width and typeface. Layouts are only drawn, never changed, so
+     * a cached one can be handed out again.
+     */
     public StaticLayout buildStaticLayout(int fontSize, String textToPrint, int lcdWidth, Typeface typeFaceDefault){
-        TextPaint textPaint = new TextPaint();
-        textPaint.setStyle(Paint.Style.FILL);
-        textPaint.setColor(Color.WHITE);
-        textPaint.setTextSize(fontSize);
-        textPaint.setTypeface(typeFaceDefault);
-        textPaint.setFakeBoldText(true);
+        LayoutKey key = new LayoutKey(textToPrint, fontSize, lcdWidth, typeFaceDefault);
+        synchronized (layouts) {
+            StaticLayout mTextLayout = layouts.get(key);
+            if (mTextLayout == null) {
+                mTextLayout = new StaticLayout(textToPrint, textPaint(fontSize, typeFaceDefault), lcdWidth, Layout.Alignment.ALIGN_CENTER, 1.0f, 0.0f, false);
+                layouts.put(key, mTextLayout);
+            }
+            return mTextLayout;
+        }
+    }
 
-        StaticLayout mTextLayout = new StaticLayout(textToPrint, textPaint, lcdWidth, Layout.Alignment.ALIGN_CENTER, 1.0f, 0.0f, false);
+    /**
+     * Drop the cached layouts, paints, glyph atlases and handed back
+     * bitmaps, e.g. when memory is low.
+     */
+    public static void clearCaches() {
+        synchronized (layouts) {
+            layouts.clear();
+            paints.clear();
+            atlases.clear();
+        }
+        synchronized (surfaces) {
+            surfaces.clear();
+            canvases.clear();
+        }
+    }
+
+    /** Called with the layouts lock held. */
+    private static TextPaint textPaint(int fontSize, Typeface typeFaceDefault) {
+        LayoutKey key = new LayoutKey(null, fontSize, 0, typeFaceDefault);
+        TextPaint textPaint = paints.get(key);
+        if (textPaint == null) {
+            textPaint = new TextPaint();
+            textPaint.setStyle(Paint.Style.FILL);
+            textPaint.setColor(Color.WHITE);
+            textPaint.setTextSize(fontSize);
+            textPaint.setTypeface(typeFaceDefault);
+            textPaint.setFakeBoldText(true);
+            paints.put(key, textPaint);
+        }
+        return textPaint;
+    }
+
+    /** What a bitmap can be reused for. */
+    private static final class SurfaceKey {
+        final int width;
+        final int height;
+        final Bitmap.Config config;
+
+        SurfaceKey(int width, int height, Bitmap.Config config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SurfaceKey)) {
+                return false;
+            }
+            SurfaceKey other = (SurfaceKey) o;
+            return width == other.width && height == other.height && config == other.config;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = width;
+            h = 31 * h + height;
+            return 31 * h + (config == null ? 0 : config.hashCode());
+        }
+    }
+
+    /** What a layout depends on. */
+    private static final class LayoutKey {
+        final String text;
+        final int fontSize;
+        final int width;
+        final Typeface typeface;
 
-        return mTextLayout;
+        LayoutKey(String text, int fontSize, int width, Typeface typeface) {
+            this.text = text;
+            this.fontSize = fontSize;
+            this.width = width;
+            this.typeface = typeface;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof LayoutKey)) {
+                return false;
+            }
+            LayoutKey other = (LayoutKey) o;
+            return fontSize == other.fontSize && width == other.width
+                    && (typeface == null ? other.typeface == null : typeface.equals(other.typeface))
+                    && (text == null ? other.text == null : text.equals(other.text));
+        }
+
+        @Override
+        public int hashCode() {
+            int h = text == null ? 0 : text.hashCode();
+            h = 31 * h + fontSize;
+            h = 31 * h + width;
+            return 31 * h + (typeface == null ? 0 : typeface.hashCode());
+        }
     }
 
 }
@@ -0,0 +1,193 @@
+package littlemansoftware.bpppngencoder.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Composes lines of text straight into packed 1bpp rows.
+ *
+ * <p>Glyphs come pre-binarized from a {@link GlyphAtlas} and are OR-ed
+ * into the rows at their bit position, so no Bitmap, Canvas or ARGB
+ * buffer is involved. The rows have the layout
+ * {@link BppPngEncoder#setPackedImage(byte[], int, int)} takes.</p>
+ *
+ * <p>Lines are wrapped and placed the way {@link LCDManager} lays them
+ * out: wrapped at spaces to fit the width, each line centered, the block
+ * of lines centered vertically.</p>
+ */
+public final class TextRasterizer {
+
+    private TextRasterizer() {
+    }
+
+    /**
+     * Wrap lines to a width, breaking after spaces where possible and
+     * inside a word only when it does not fit on a line by itself.
+     *
+     * @param lines The lines of text.
+     * @param atlas The glyphs, for their advances.
+     * @param width The width to fit in pixels.
+     * @return the wrapped lines
+     */
+    public static List<String> wrap(String[] lines, GlyphAtlas atlas, int width) {
+        List<String> wrapped = new ArrayList<String>(lines.length);
+        for (String line : lines) {
+            int start = 0;
+            int n = line.length();
+            while (true) {
+                int lineWidth = 0;
+                int end = start;
+                int lastSpace = -1;
+                while (end < n) {
+                    char c = line.charAt(end);
+                    int advance = atlas.advance(c);
+                    // a space may hang past the edge, it is dropped at the break
+                    if (c != ' ' && lineWidth + advance > width && end > start) {
+                        break;
+                    }
+                    if (c == ' ') {
+                        lastSpace = end;
+                    }
+                    lineWidth += advance;
+                    end++;
+                }
+                if (end == n) {
+                    wrapped.add(line.substring(start));
+                    break;
+                }
+                if (lastSpace >= 0) {
+                    end = lastSpace + 1;
+                }
+                wrapped.add(trimEnd(line, start, end));
+                start = end;
+            }
+        }
+        return wrapped;
+    }
+
+    /**
+     * Compose text into packed rows, BitPacker.bytesPerRow(width) bytes
+     * per row, lit pixels set.
+     *
+     * @param lines The lines, already wrapped.
+     * @param atlas The glyphs.
+     * @param width Image width.
+     * @param height Image height.
+     * @param border Whether to light the outermost pixels, like the frame LCDManager draws.
+     * @param dst Rows to reuse, or null; used when large enough.
+     * @return the packed rows
+     */
+    public static byte[] compose(List<String> lines, GlyphAtlas atlas, int width, int height,
+                                 boolean border, byte[] dst) {
+        int rowBytes = BitPacker.bytesPerRow(width);
+        int size = rowBytes * height;
+        if (dst == null || dst.length < size) {
+            dst = new byte[size];
+        } else {
+            Arrays.fill(dst, 0, size, (byte) 0);
+        }
+
+        int lineHeight = atlas.getLineHeight();
+        int top = (height - lines.size() * lineHeight) / 2;
+        for (int l = 0; l < lines.size(); l++) {
+            String line = lines.get(l);
+            int x = (width - atlas.width(line, 0, line.length())) / 2;
+            int y = top + l * lineHeight;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c != ' ') {
+                    drawGlyph(atlas, atlas.bits(c), x - atlas.getPad(), y, dst, rowBytes, width, height);
+                }
+                x += atlas.advance(c);
+            }
+        }
+
+        if (border && width > 0 && height > 0) {
+            drawBorder(dst, rowBytes, width, height);
+        }
+        return dst;
+    }
+
+    /**
+     * OR a glyph into the rows, clipped to the image.
+     */
+    private static void drawGlyph(GlyphAtlas atlas, byte[] bits, int x, int y,
+                                  byte[] dst, int rowBytes, int width, int height) {
+        int boxWidth = atlas.getBoxWidth();
+        int glyphRowBytes = atlas.getRowBytes();
+        int rows = atlas.getLineHeight();
+        for (int r = 0; r < rows; r++) {
+            int dy = y + r;
+            if (dy < 0 || dy >= height) {
+                continue;
+            }
+            orBits(bits, r * glyphRowBytes, boxWidth, dst, dy * rowBytes, x, width);
+        }
+    }
+
+    /**
+     * OR a packed run of bits into a packed row starting at pixel x,
+     * dropping bits left of 0 or right of width.
+     *
+     * @param src The bits, most significant first.
+     * @param srcPos Where they start.
+     * @param nBits How many there are.
+     * @param dst The row.
+     * @param dstPos Where the row starts.
+     * @param x Pixel the first bit goes to, may be negative.
+     * @param width Pixels in the row.
+     */
+    static void orBits(byte[] src, int srcPos, int nBits, byte[] dst, int dstPos, int x, int width) {
+        int shift = x & 7;
+        int dstByte = x >> 3;
+        int nBytes = (nBits + 7) >>> 3;
+        int lastByte = (width - 1) >> 3;
+        for (int i = 0; i < nBytes; i++, dstByte++) {
+            int b = src[srcPos + i] & 0xff;
+            if (b == 0) {
+                continue;
+            }
+            int hi = b >>> shift;
+            int lo = (b << (8 - shift)) & 0xff;
+            if (dstByte >= 0 && dstByte <= lastByte) {
+                dst[dstPos + dstByte] |= (byte) hi;
+            }
+            if (shift != 0 && dstByte + 1 >= 0 && dstByte + 1 <= lastByte) {
+                dst[dstPos + dstByte + 1] |= (byte) lo;
+            }
+        }
+        // keep the padding bits of the row at 0
+        int rest = width & 7;
+        if (rest != 0) {
+            dst[dstPos + lastByte] &= (byte) (0xff00 >>> rest);
+        }
+    }
+
+    private static void drawBorder(byte[] dst, int rowBytes, int width, int height) {
+        int lastRow = (height - 1) * rowBytes;
+        for (int i = 0; i < rowBytes; i++) {
+            dst[i] = (byte) 0xff;
+            dst[lastRow + i] = (byte) 0xff;
+        }
+        int rest = width & 7;
+        if (rest != 0) {
+            byte mask = (byte) (0xff00 >>> rest);
+            dst[rowBytes - 1] &= mask;
+            dst[lastRow + rowBytes - 1] &= mask;
+        }
+        int right = (width - 1) >> 3;
+        byte rightBit = (byte) (0x80 >>> ((width - 1) & 7));
+        for (int pos = 0; pos <= lastRow; pos += rowBytes) {
+            dst[pos] |= (byte) 0x80;
+            dst[pos + right] |= rightBit;
+        }
+    }
+
+    private static String trimEnd(String line, int start, int end) {
+        while (end > start && line.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return line.substring(start, end);
+    }
+}
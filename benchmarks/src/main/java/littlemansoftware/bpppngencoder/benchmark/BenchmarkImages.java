@@ -0,0 +1,89 @@
+package littlemansoftware.bpppngencoder.benchmark;
+
+import java.util.Random;
+
+import littlemansoftware.bpppngencoder.util.ArgbPixelSource;
+import littlemansoftware.bpppngencoder.util.PixelSource;
+
+/**
+ * Test images for the benchmarks.
+ *
+ * <p>Sizes are given as "WIDTHxHEIGHT". Content is one of "blank" (all
+ * black, as an empty LCD), "text" (rows of glyph-like white blocks on
+ * black, as a ticket) or "noise" (random pixels, the worst case for
+ * deflate). Images are generated from a fixed seed so runs compare.</p>
+ */
+public final class BenchmarkImages {
+
+    public static final int BLACK = 0xFF000000;
+
+    public static final int WHITE = 0xFFFFFFFF;
+
+    private BenchmarkImages() {
+    }
+
+    public static int width(String size) {
+        return Integer.parseInt(size.substring(0, size.indexOf('x')));
+    }
+
+    public static int height(String size) {
+        return Integer.parseInt(size.substring(size.indexOf('x') + 1));
+    }
+
+    /**
+     * ARGB pixels of a test image.
+     *
+     * @param size "WIDTHxHEIGHT"
+     * @param content "blank", "text" or "noise"
+     * @return width * height pixels, rows stored contiguously
+     */
+    public static int[] pixels(String size, String content) {
+        int width = width(size);
+        int height = height(size);
+        int[] pixels = new int[width * height];
+        Random random = new Random(42);
+
+        if ("noise".equals(content)) {
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = random.nextBoolean() ? WHITE : BLACK;
+            }
+        } else if ("text".equals(content)) {
+            // 8x12 glyph cells on 16 pixel lines; each glyph is a random 6x10 bitmap
+            long[] glyphs = new long[64];
+            for (int g = 0; g < glyphs.length; g++) {
+                glyphs[g] = random.nextLong();
+            }
+            for (int y = 0; y < height; y++) {
+                int line = y / 16;
+                int gy = y % 16 - 3;
+                for (int x = 0; x < width; x++) {
+                    int gx = x % 8 - 1;
+                    int color = BLACK;
+                    if (gy >= 0 && gy < 10 && gx >= 0 && gx < 6) {
+                        long glyph = glyphs[(line * 31 + x / 8) & 63];
+                        if ((glyph >>> (gy * 6 + gx) & 1) != 0) {
+                            color = WHITE;
+                        }
+                    }
+                    pixels[y * width + x] = color;
+                }
+            }
+        } else {
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = BLACK;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * A test image as a pixel source.
+     *
+     * @param size "WIDTHxHEIGHT"
+     * @param content "blank", "text" or "noise"
+     * @return the pixel source
+     */
+    public static PixelSource source(String size, String content) {
+        return new ArgbPixelSource(pixels(size, content), width(size), height(size));
+    }
+}
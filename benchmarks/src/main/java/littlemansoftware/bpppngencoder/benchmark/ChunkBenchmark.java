@@ -0,0 +1,137 @@
+package littlemansoftware.bpppngencoder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import littlemansoftware.bpppngencoder.util.BitPacker;
+import littlemansoftware.bpppngencoder.util.ChunkWriter;
+
+/**
+ * Chunk assembly and CRC: writing an IDAT of already compressed data
+ * through the encoder's old byte writers and through a {@link ChunkWriter},
+ * and the CRC32 over it on its own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ChunkBenchmark {
+
+    @Param({"240x64", "640x480", "2000x10000"})
+    public String size;
+
+    @Param({"blank", "text", "noise"})
+    public String content;
+
+    private byte[] compressed;
+    private ChunkHarness harness;
+    private ChunkWriter writer;
+    private CRC32 crc;
+
+    @Setup
+    public void setup() {
+        int width = BenchmarkImages.width(size);
+        int height = BenchmarkImages.height(size);
+        byte[] scanLines = new byte[(BitPacker.bytesPerRow(width) + 1) * height];
+        int n = BitPacker.packRows(BenchmarkImages.pixels(size, content), 0, width, height, 0, scanLines, 0);
+
+        Deflater deflater = new Deflater(9);
+        deflater.setInput(scanLines, 0, n);
+        deflater.finish();
+        byte[] out = new byte[n + n / 100 + 64];
+        int length = 0;
+        while (!deflater.finished()) {
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        deflater.end();
+        compressed = new byte[length];
+        System.arraycopy(out, 0, compressed, 0, length);
+
+        harness = new ChunkHarness();
+        writer = new ChunkWriter(length + 12);
+        crc = new CRC32();
+    }
+
+    @Benchmark
+    public int writeIdat() {
+        return harness.writeIdat(compressed);
+    }
+
+    @Benchmark
+    public int chunkWriter() {
+        writer.reset();
+        writer.idat(compressed, 0, compressed.length, 0);
+        return writer.getPosition();
+    }
+
+    @Benchmark
+    public long crc32() {
+        crc.reset();
+        crc.update(compressed, 0, compressed.length);
+        return crc.getValue();
+    }
+
+    /**
+     * The byte writers the encoder used before {@link ChunkWriter}: an
+     * offset threaded through each call, and a capacity check per write.
+     */
+    static final class ChunkHarness {
+        private static final byte[] IDAT = {73, 68, 65, 84};
+
+        private final CRC32 crc = new CRC32();
+        private byte[] pngBytes;
+        private int maxPos;
+
+        int writeIdat(byte[] data) {
+            if (pngBytes == null || pngBytes.length < data.length + 12) {
+                pngBytes = new byte[data.length + 12];
+            }
+            maxPos = 0;
+            int bytePos = writeInt4(data.length, 0);
+            bytePos = writeBytes(IDAT, IDAT.length, bytePos);
+            bytePos = writeBytes(data, data.length, bytePos);
+            crc.reset();
+            crc.update(pngBytes, 4, data.length + 4);
+            return writeInt4((int) crc.getValue(), bytePos);
+        }
+
+        private void ensureCapacity(int nBytes, int offset) {
+            maxPos = Math.max(maxPos, offset + nBytes);
+            if (nBytes + offset > pngBytes.length) {
+                byte[] grown = new byte[pngBytes.length + Math.max(1000, nBytes)];
+                System.arraycopy(pngBytes, 0, grown, 0, pngBytes.length);
+                pngBytes = grown;
+            }
+        }
+
+        private int writeBytes(byte[] data, int nBytes, int offset) {
+            ensureCapacity(nBytes, offset);
+            System.arraycopy(data, 0, pngBytes, offset, nBytes);
+            return offset + nBytes;
+        }
+
+        private int writeInt4(int n, int offset) {
+            ensureCapacity(4, offset);
+            pngBytes[offset] = (byte) ((n >> 24) & 0xff);
+            pngBytes[offset + 1] = (byte) ((n >> 16) & 0xff);
+            pngBytes[offset + 2] = (byte) ((n >> 8) & 0xff);
+            pngBytes[offset + 3] = (byte) (n & 0xff);
+            return offset + 4;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package littlemansoftware.bpppngencoder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import littlemansoftware.bpppngencoder.util.PngEncoder;
+import littlemansoftware.bpppngencoder.util.PngDecoder;
+
+/**
+ * Decoding an encoded frame back into packed rows, with and without
+ * the chunk CRCs checked.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class DecodeBenchmark {
+
+    @Param({"240x64", "640x480", "2000x10000"})
+    public String size;
+
+    @Param({"blank", "text", "noise"})
+    public String content;
+
+    @Param({"true", "false"})
+    public boolean verifyCrc;
+
+    private byte[] png;
+    private byte[] rows;
+    private PngDecoder decoder;
+
+    @Setup
+    public void setup() {
+        PngEncoder encoder = new PngEncoder();
+        encoder.setPixelSource(BenchmarkImages.source(size, content));
+        encoder.setCompressionLevel(9);
+        encoder.setFilter(PngEncoder.FILTER_ADAPTIVE);
+        png = encoder.pngEncode();
+        decoder = new PngDecoder();
+        decoder.setVerifyCrc(verifyCrc);
+    }
+
+    @Benchmark
+    public byte[] decode() throws IOException {
+        rows = decoder.decode(png, 0, png.length, rows);
+        return rows;
+    }
+}
@@ -0,0 +1,74 @@
+package littlemansoftware.bpppngencoder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import littlemansoftware.bpppngencoder.util.BitPacker;
+
+/**
+ * Deflate of packed 1bpp scanlines at each compression level, with a
+ * reused Deflater as the encoder does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class DeflateBenchmark {
+
+    @Param({"240x64", "640x480", "2000x10000"})
+    public String size;
+
+    @Param({"blank", "text", "noise"})
+    public String content;
+
+    @Param({"0", "1", "2", "3", "4", "5", "6", "7", "8", "9"})
+    public int level;
+
+    private byte[] scanLines;
+    private int scanLength;
+    private byte[] compressed;
+    private Deflater deflater;
+
+    @Setup
+    public void setup() {
+        int width = BenchmarkImages.width(size);
+        int height = BenchmarkImages.height(size);
+        scanLines = new byte[(BitPacker.bytesPerRow(width) + 1) * height];
+        scanLength = BitPacker.packRows(BenchmarkImages.pixels(size, content), 0, width, height, 0, scanLines, 0);
+        compressed = new byte[scanLength + scanLength / 100 + 64];
+        deflater = new Deflater(level);
+    }
+
+    @TearDown
+    public void tearDown() {
+        deflater.end();
+    }
+
+    @Benchmark
+    public int deflate() {
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(scanLines, 0, scanLength);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished()) {
+            n += deflater.deflate(compressed, n, compressed.length - n);
+        }
+        return n;
+    }
+}
@@ -0,0 +1,69 @@
+package littlemansoftware.bpppngencoder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import littlemansoftware.bpppngencoder.util.PngEncoder;
+
+/**
+ * End-to-end encoding of an ARGB image, into a byte array and streamed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class EncodeBenchmark {
+
+    @Param({"240x64", "640x480", "2000x10000"})
+    public String size;
+
+    @Param({"blank", "text", "noise"})
+    public String content;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    private PngEncoder encoder;
+    private OutputStream sink;
+
+    @Setup
+    public void setup() {
+        encoder = new PngEncoder();
+        encoder.setPixelSource(BenchmarkImages.source(size, content));
+        encoder.setCompressionLevel(level);
+        sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+    }
+
+    @Benchmark
+    public byte[] pngEncode() {
+        return encoder.pngEncode();
+    }
+
+    @Benchmark
+    public long pngEncodeStream() throws IOException {
+        return encoder.pngEncode(sink);
+    }
+}
@@ -0,0 +1,111 @@
+package littlemansoftware.bpppngencoder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import littlemansoftware.bpppngencoder.util.BitPacker;
+
+/**
+ * Pixel to bit packing: the BitPacker hot path against the two per-pixel
+ * loops it replaced, kept here as baselines.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PackingBenchmark {
+
+    @Param({"240x64", "640x480", "2000x10000"})
+    public String size;
+
+    @Param({"blank", "text", "noise"})
+    public String content;
+
+    private int width;
+    private int height;
+    private int[] pixels;
+    private byte[] scanLines;
+
+    @Setup
+    public void setup() {
+        width = BenchmarkImages.width(size);
+        height = BenchmarkImages.height(size);
+        pixels = BenchmarkImages.pixels(size, content);
+        scanLines = new byte[(BitPacker.bytesPerRow(width) + 1) * height];
+    }
+
+    @Benchmark
+    public byte[] bitPacker() {
+        BitPacker.packRows(pixels, 0, width, height, 0, scanLines, 0);
+        return scanLines;
+    }
+
+    /** The per-pixel modulo loop of compressImageData2 before BitPacker. */
+    @Benchmark
+    public byte[] moduloPacking() {
+        int max = 8;
+        int count = 1;
+        byte output = 0x00;
+        int scanPos = 0;
+        for (int i = 0; i < width * height; i++) {
+            if (i % width == 0) {
+                scanLines[scanPos++] = 0;
+            }
+            Integer pvalue;
+            if (pixels[i] == BenchmarkImages.BLACK) {
+                pvalue = 0;
+            } else {
+                pvalue = 1;
+            }
+            int shift = 8 - count;
+            byte pix = (byte) pvalue.intValue();
+            output = (byte) (output | (pix << shift));
+            if (count == max) {
+                scanLines[scanPos++] = output;
+                output = 0x00;
+                count = 1;
+            } else if ((i != 0) && ((i + 1) % width == 0)) {
+                scanLines[scanPos++] = output;
+                output = 0x00;
+                count = 1;
+            } else {
+                count++;
+            }
+        }
+        return scanLines;
+    }
+
+    /** The String building loop of compressImageData before BitPacker. */
+    @Benchmark
+    public byte[] stringPacking() {
+        int scanPos = 0;
+        for (int i = 0; i < height; i++) {
+            scanLines[scanPos++] = 0;
+            for (int j = 0; j + 8 <= width; j = j + 8) {
+                String b0 = (pixels[i * width + j] == BenchmarkImages.BLACK) ? "1" : "0";
+                String b1 = (pixels[i * width + j + 1] == BenchmarkImages.BLACK) ? "1" : "0";
+                String b2 = (pixels[i * width + j + 2] == BenchmarkImages.BLACK) ? "1" : "0";
+                String b3 = (pixels[i * width + j + 3] == BenchmarkImages.BLACK) ? "1" : "0";
+                String b4 = (pixels[i * width + j + 4] == BenchmarkImages.BLACK) ? "1" : "0";
+                String b5 = (pixels[i * width + j + 5] == BenchmarkImages.BLACK) ? "1" : "0";
+                String b6 = (pixels[i * width + j + 6] == BenchmarkImages.BLACK) ? "1" : "0";
+                String b7 = (pixels[i * width + j + 7] == BenchmarkImages.BLACK) ? "1" : "0";
+                scanLines[scanPos++] = (byte) (int) Integer.valueOf(b0 + b1 + b2 + b3 + b4 + b5 + b6 + b7, 2);
+            }
+        }
+        return scanLines;
+    }
+}
@@ -0,0 +1,57 @@
+package littlemansoftware.bpppngencoder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import littlemansoftware.bpppngencoder.util.BitPacker;
+import littlemansoftware.bpppngencoder.util.EncoderContext;
+
+/**
+ * Deflate of packed 1bpp scanlines by the plain Java SparseDeflater,
+ * to compare with the levels of {@link DeflateBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SparseDeflateBenchmark {
+
+    @Param({"240x64", "640x480", "2000x10000"})
+    public String size;
+
+    @Param({"blank", "text", "noise"})
+    public String content;
+
+    private byte[] scanLines;
+    private int scanLength;
+    private int stride;
+    private EncoderContext ctx;
+
+    @Setup
+    public void setup() {
+        int width = BenchmarkImages.width(size);
+        int height = BenchmarkImages.height(size);
+        stride = BitPacker.bytesPerRow(width) + 1;
+        scanLines = new byte[stride * height];
+        scanLength = BitPacker.packRows(BenchmarkImages.pixels(size, content), 0, width, height, 0, scanLines, 0);
+        ctx = new EncoderContext();
+    }
+
+    @Benchmark
+    public int deflate() {
+        return ctx.sparseDeflater().deflate(ctx, scanLines, scanLength, stride);
+    }
+}
@@ -0,0 +1,178 @@
+package littlemansoftware.bpppngencoder.util;
+
+/**
+ * The seven passes of PNG's Adam7 interlace.
+ *
+ * <p>Pass 1 holds every 8th pixel of every 8th row, so a decoder can
+ * show a coarse picture after about 1/64 of the image data and refine
+ * it with each following pass. Passes are built straight from packed
+ * rows by gathering the pixels of each pass row, no copy of the image
+ * is made per pass.</p>
+ */
+public final class Adam7 {
+
+    /** Number of passes. */
+    public static final int PASSES = 7;
+
+    private static final int[] X0 = {0, 4, 0, 2, 0, 1, 0};
+    private static final int[] Y0 = {0, 0, 4, 0, 2, 0, 1};
+    private static final int[] DX = {8, 8, 4, 4, 2, 2, 1};
+    private static final int[] DY = {8, 8, 8, 4, 4, 2, 2};
+
+    private Adam7() {
+    }
+
+    /**
+     * Pixels per row of a pass.
+     *
+     * @param pass 0 through 6.
+     * @param width Image width.
+     * @return the width of the pass, 0 if it is empty
+     */
+    public static int passWidth(int pass, int width) {
+        return Math.max(0, (width - X0[pass] + DX[pass] - 1) / DX[pass]);
+    }
+
+    /**
+     * Rows of a pass.
+     *
+     * @param pass 0 through 6.
+     * @param height Image height.
+     * @return the height of the pass, 0 if it is empty
+     */
+    public static int passHeight(int pass, int height) {
+        return Math.max(0, (height - Y0[pass] + DY[pass] - 1) / DY[pass]);
+    }
+
+    /**
+     * Retrieve the column of the first pixel of a pass
+     *
+     * @param pass 0 through 6.
+     * @return the first column
+     */
+    public static int firstColumn(int pass) {
+        return X0[pass];
+    }
+
+    /**
+     * Retrieve the row of the first pixel of a pass
+     *
+     * @param pass 0 through 6.
+     * @return the first row
+     */
+    public static int firstRow(int pass) {
+        return Y0[pass];
+    }
+
+    /**
+     * Retrieve the distance between the columns of a pass
+     *
+     * @param pass 0 through 6.
+     * @return the column step
+     */
+    public static int columnStep(int pass) {
+        return DX[pass];
+    }
+
+    /**
+     * Retrieve the distance between the rows of a pass
+     *
+     * @param pass 0 through 6.
+     * @return the row step
+     */
+    public static int rowStep(int pass) {
+        return DY[pass];
+    }
+
+    /**
+     * Bytes of the interlaced scanlines of an image, filter type bytes
+     * included; empty passes have no scanlines.
+     *
+     * @param width Image width.
+     * @param height Image height.
+     * @param depth Bits per pixel.
+     * @return the size in bytes
+     */
+    public static int size(int width, int height, int depth) {
+        int size = 0;
+        for (int p = 0; p < PASSES; p++) {
+            int w = passWidth(p, width);
+            if (w > 0) {
+                size += (((w * depth + 7) >>> 3) + 1) * passHeight(p, height);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Build the filtered scanlines of all passes from packed rows.
+     *
+     * @param src The packed rows.
+     * @param srcPos Where the pixels of the first row start.
+     * @param srcStride Distance between rows in src.
+     * @param width Image width.
+     * @param height Image height.
+     * @param depth Bits per pixel, 1, 2, 4 or 8.
+     * @param filter Row filter, see {@link ScanlineFilter#filterRows}; each pass starts over.
+     * @param dst The array receiving the scanlines, at least {@link #size} bytes from dstPos.
+     * @param dstPos Where the first scanline starts in dst.
+     * @param passEnds If not null, receives the end of each pass in dst.
+     * @return The next place to be written to in dst.
+     */
+    public static int interlace(byte[] src, int srcPos, int srcStride, int width, int height, int depth,
+                                int filter, byte[] dst, int dstPos, int[] passEnds) {
+        for (int p = 0; p < PASSES; p++) {
+            int passWidth = passWidth(p, width);
+            int passHeight = passHeight(p, height);
+            int start = dstPos;
+            if (passWidth > 0 && passHeight > 0) {
+                for (int k = 0; k < passHeight; k++) {
+                    int y = Y0[p] + k * DY[p];
+                    dst[dstPos++] = (byte) ScanlineFilter.NONE;
+                    dstPos = gatherRow(src, srcPos + y * srcStride, depth, X0[p], DX[p], passWidth,
+                            dst, dstPos);
+                }
+                if (filter != ScanlineFilter.NONE) {
+                    ScanlineFilter.filterRows(dst, start, passHeight, (passWidth * depth + 7) >>> 3,
+                            filter, null, null);
+                }
+            }
+            if (passEnds != null) {
+                passEnds[p] = dstPos;
+            }
+        }
+        return dstPos;
+    }
+
+    /**
+     * Pack every step-th pixel of a row, starting at pixel x0.
+     */
+    private static int gatherRow(byte[] src, int srcPos, int depth, int x0, int step, int n,
+                                 byte[] dst, int dstPos) {
+        if (step == 1) {
+            // the last pass takes whole rows, padding included
+            int len = (n * depth + 7) >>> 3;
+            System.arraycopy(src, srcPos, dst, dstPos, len);
+            return dstPos + len;
+        }
+        int mask = (1 << depth) - 1;
+        int acc = 0;
+        int nBits = 0;
+        int bit = x0 * depth;
+        int bitStep = step * depth;
+        for (int i = 0; i < n; i++, bit += bitStep) {
+            int v = (src[srcPos + (bit >>> 3)] >> (8 - depth - (bit & 7))) & mask;
+            acc = (acc << depth) | v;
+            nBits += depth;
+            if (nBits == 8) {
+                dst[dstPos++] = (byte) acc;
+                acc = 0;
+                nBits = 0;
+            }
+        }
+        if (nBits > 0) {
+            dst[dstPos++] = (byte) (acc << (8 - nBits));
+        }
+        return dstPos;
+    }
+}
@@ -0,0 +1,329 @@
+package littlemansoftware.bpppngencoder.util;
+
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a sequence of 1bpp frames of the same size as one animated PNG.
+ *
+ * <p>The first frame is the default image, written whole as IDAT the
+ * way {@link PngEncoder} writes a packed image, so a decoder without
+ * APNG support shows it. Each later frame is compared with the one
+ * before it a packed byte at a time: only the rows from the first to
+ * the last that changed, and the byte columns from the first to the
+ * last that changed in them, are deflated into fdAT chunks, with an
+ * fcTL placing them on the canvas. A ticker or a countdown usually
+ * changes a small part of the display, so the animation is a fraction
+ * of the size of a PNG per frame, and decoders redraw only that part.</p>
+ *
+ * <p>Frames are left on the canvas (dispose op none), which is what the
+ * next frame was compared with, and replace their region (blend op
+ * source); the image has no alpha, so blending over would change
+ * nothing and only cost the decoder. A frame equal to the one before it
+ * adds its delay to that frame instead of writing any chunk.</p>
+ *
+ * <p>Buffers for the scanlines and the compressed data come from the
+ * calling thread's {@link EncoderContext#current()}. Not thread safe; use
+ * an encoder per animation.</p>
+ */
+public class ApngEncoder {
+
+    /** Longest delay of a single frame, in milliseconds. */
+    public static final int MAX_DELAY = 0xffff;
+
+    private final int width;
+    private final int height;
+    private final int rowBytes;
+
+    private int plays;
+    private int compressionLevel = 9;
+    private int compressionStrategy = Deflater.DEFAULT_STRATEGY;
+    private int filter = ScanlineFilter.NONE;
+    private int idatSize;
+
+    private final ChunkWriter chunks = new ChunkWriter(1024);
+
+    /** Packed rows of the last frame. */
+    private final byte[] previous;
+
+    /** Frames written so far, frames merged into the one before not counted. */
+    private int frames;
+
+    /** Sequence number of the next fcTL or fdAT chunk. */
+    private int sequence;
+
+    /** Where the acTL and the last fcTL chunks start in the writer's buffer. */
+    private int actlPos, fctlPos;
+
+    /** Delay of the last frame in milliseconds. */
+    private int lastDelay;
+
+    /**
+     * @param width Width of every frame in pixels, at least 1.
+     * @param height Height of every frame in pixels, at least 1.
+     */
+    public ApngEncoder(int width, int height) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Bad frame size " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.rowBytes = BitPacker.bytesPerRow(width);
+        this.previous = new byte[rowBytes * height];
+    }
+
+    /**
+     * Retrieve the width of the frames
+     *
+     * @return width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Retrieve the height of the frames
+     *
+     * @return height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Set how many times the animation plays; ignored once a frame was added
+     *
+     * @param plays 0 to play for ever, the default.
+     */
+    public void setPlays(int plays) {
+        if (plays >= 0 && frames == 0) {
+            this.plays = plays;
+        }
+    }
+
+    /**
+     * Retrieve how many times the animation plays
+     *
+     * @return 0 for ever
+     */
+    public int getPlays() {
+        return plays;
+    }
+
+    /**
+     * Set level, strategy and filter for the frames still to be added
+     *
+     * @param settings the combination to use
+     */
+    public void setCompressionSettings(CompressionSettings settings) {
+        int level = settings.getLevel();
+        int strategy = settings.getStrategy();
+        int filter = settings.getFilter();
+        if (level >= 0 && level <= 9) {
+            this.compressionLevel = level;
+        }
+        if (strategy == Deflater.DEFAULT_STRATEGY || strategy == Deflater.FILTERED
+                || strategy == Deflater.HUFFMAN_ONLY) {
+            this.compressionStrategy = strategy;
+        }
+        if (filter >= ScanlineFilter.NONE && filter <= ScanlineFilter.ADAPTIVE) {
+            this.filter = filter;
+        }
+    }
+
+    /**
+     * Retrieve level, strategy and filter
+     *
+     * @return the current combination
+     */
+    public CompressionSettings getCompressionSettings() {
+        return new CompressionSettings(compressionLevel, compressionStrategy, filter);
+    }
+
+    /**
+     * Set the largest data of an IDAT or fdAT chunk
+     *
+     * @param idatSize bytes per chunk, 0 for one chunk per frame.
+     */
+    public void setIdatSize(int idatSize) {
+        if (idatSize >= 0) {
+            this.idatSize = idatSize;
+        }
+    }
+
+    /**
+     * Retrieve the largest data of an IDAT or fdAT chunk
+     *
+     * @return bytes per chunk, 0 for one chunk per frame
+     */
+    public int getIdatSize() {
+        return idatSize;
+    }
+
+    /**
+     * Retrieve the number of frames written so far
+     *
+     * @return frames, not counting those equal to the frame before
+     */
+    public int getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * Add a frame, shown for the given time.
+     *
+     * @param rows Packed rows in the layout of {@link PngEncoder#setPackedImage(byte[], int, int)},
+     *             BitPacker.bytesPerRow(width) bytes each, padding bits 0.
+     * @param delayMillis Time until the next frame, 0 through {@link #MAX_DELAY}.
+     */
+    public void addFrame(byte[] rows, int delayMillis) {
+        if (rows.length < previous.length) {
+            throw new IllegalArgumentException("Need " + previous.length + " bytes of rows, got " + rows.length);
+        }
+        if (delayMillis < 0 || delayMillis > MAX_DELAY) {
+            throw new IllegalArgumentException("Delay must be 0 to " + MAX_DELAY + " ms: " + delayMillis);
+        }
+        if (frames == 0) {
+            chunks.signature();
+            chunks.ihdr(width, height, 1, 0, 0);
+            chunks.plte(PngEncoder.PEBBLE_PALETTE, PngEncoder.PEBBLE_PALETTE.length);
+            actlPos = chunks.getPosition();
+            chunks.actl(0, plays); // the frame count is filled in by finish
+            writeFrame(rows, 0, height - 1, 0, rowBytes - 1, delayMillis);
+            System.arraycopy(rows, 0, previous, 0, previous.length);
+            return;
+        }
+
+        // rows and byte columns that changed
+        int top = -1, bottom = -1, left = rowBytes, right = -1;
+        for (int y = 0; y < height; y++) {
+            int p = y * rowBytes;
+            int first = -1;
+            for (int i = 0; i < rowBytes; i++) {
+                if (rows[p + i] != previous[p + i]) {
+                    first = i;
+                    break;
+                }
+            }
+            if (first < 0) {
+                continue;
+            }
+            int last = rowBytes - 1;
+            while (rows[p + last] == previous[p + last]) {
+                last--;
+            }
+            if (top < 0) {
+                top = y;
+            }
+            bottom = y;
+            left = Math.min(left, first);
+            right = Math.max(right, last);
+        }
+
+        if (top < 0) {
+            if (lastDelay + delayMillis <= MAX_DELAY) {
+                setLastDelay(lastDelay + delayMillis);
+                return;
+            }
+            // a frame is needed for the time, redraw a single byte unchanged
+            top = bottom = left = right = 0;
+        }
+        writeFrame(rows, top, bottom, left, right, delayMillis);
+        for (int y = top; y <= bottom; y++) {
+            int p = y * rowBytes + left;
+            System.arraycopy(rows, p, previous, p, right - left + 1);
+        }
+    }
+
+    /**
+     * Finish the animation and start over for the next one.
+     *
+     * @return the APNG bytes, or null if no frame was added
+     */
+    public byte[] finish() {
+        if (frames == 0) {
+            return null;
+        }
+        byte[] b = chunks.getBuffer();
+        ChunkWriter.putInt4(b, actlPos + 8, frames);
+        ChunkWriter.putInt4(b, actlPos + 16, chunks.crc(ChunkWriter.ACTL, b, actlPos + 8, 8));
+        chunks.iend();
+        byte[] png = Arrays.copyOf(chunks.getBuffer(), chunks.getPosition());
+        reset();
+        return png;
+    }
+
+    /** Drop the frames added so far. */
+    public void reset() {
+        chunks.reset();
+        frames = 0;
+        sequence = 0;
+        lastDelay = 0;
+    }
+
+    /**
+     * Write the fcTL of a region and its image data: IDAT for the first
+     * frame, fdAT after.
+     *
+     * @param rows The packed rows of the whole frame.
+     * @param top First row of the region.
+     * @param bottom Last row of the region.
+     * @param left First byte column of the region.
+     * @param right Last byte column of the region.
+     * @param delayMillis Time until the next frame.
+     */
+    private void writeFrame(byte[] rows, int top, int bottom, int left, int right, int delayMillis) {
+        EncoderContext ctx = EncoderContext.current();
+        int regionRows = bottom - top + 1;
+        int regionBytes = right - left + 1;
+        int x = left * 8;
+        int regionWidth = Math.min(width, (right + 1) * 8) - x;
+
+        // the region's scanlines; at the right edge its padding bits are the frame's
+        int len = (regionBytes + 1) * regionRows;
+        byte[] scan = ctx.scanLines(len);
+        int pos = 0;
+        for (int y = top; y <= bottom; y++) {
+            scan[pos++] = (byte) ScanlineFilter.NONE;
+            System.arraycopy(rows, y * rowBytes + left, scan, pos, regionBytes);
+            pos += regionBytes;
+        }
+        if (filter != ScanlineFilter.NONE) {
+            ScanlineFilter.filterRows(scan, 0, regionRows, regionBytes, filter, null, null);
+        }
+
+        Deflater scrunch = ctx.deflater(compressionLevel, compressionStrategy);
+        scrunch.setInput(scan, 0, len);
+        scrunch.finish();
+        byte[] compressed = ctx.compressed(Math.max(1024, len / 8));
+        int nCompressed = 0;
+        while (!scrunch.finished()) {
+            if (nCompressed == compressed.length) {
+                compressed = ctx.compressed(compressed.length * 2);
+            }
+            nCompressed += scrunch.deflate(compressed, nCompressed, compressed.length - nCompressed);
+        }
+
+        fctlPos = chunks.getPosition();
+        chunks.fctl(sequence++, regionWidth, regionRows, x, top, delayMillis, 1000,
+                ChunkWriter.DISPOSE_NONE, ChunkWriter.BLEND_SOURCE);
+        if (frames == 0) {
+            chunks.idat(compressed, 0, nCompressed, idatSize);
+        } else {
+            sequence = chunks.fdat(sequence, compressed, 0, nCompressed, idatSize);
+        }
+        lastDelay = delayMillis;
+        frames++;
+    }
+
+    /** Change the delay of the last fcTL written. */
+    private void setLastDelay(int delayMillis) {
+        byte[] b = chunks.getBuffer();
+        int payload = fctlPos + 8;
+        b[payload + 20] = (byte) (delayMillis >> 8);
+        b[payload + 21] = (byte) delayMillis;
+        ChunkWriter.putInt4(b, payload + ChunkWriter.FCTL_LENGTH,
+                chunks.crc(ChunkWriter.FCTL, b, payload, ChunkWriter.FCTL_LENGTH));
+        lastDelay = delayMillis;
+    }
+}
@@ -0,0 +1,67 @@
+package littlemansoftware.bpppngencoder.util;
+
+/**
+ * A {@link PixelSource} over an array of ARGB colours, rows stored one
+ * after another. The array is read at each encode, not copied.
+ */
+public class ArgbPixelSource implements PixelSource {
+
+    private final int[] argb;
+    private final int offset;
+    private final int stride;
+    private final int width;
+    private final int height;
+
+    /**
+     * @param argb The colours, top row first, width per row.
+     * @param width Image width in pixels.
+     * @param height Image height in pixels.
+     */
+    public ArgbPixelSource(int[] argb, int width, int height) {
+        this(argb, 0, width, width, height);
+    }
+
+    /**
+     * @param argb The colours, top row first.
+     * @param offset Where the first pixel of the top row is in argb.
+     * @param stride Distance between rows in argb.
+     * @param width Image width in pixels.
+     * @param height Image height in pixels.
+     */
+    public ArgbPixelSource(int[] argb, int offset, int stride, int width, int height) {
+        if (width < 0 || height < 0 || stride < width
+                || (height > 0 && argb.length < offset + (long) (height - 1) * stride + width)) {
+            throw new IllegalArgumentException("Need " + width + "x" + height + " pixels at stride "
+                    + stride + " from " + offset + ", got " + argb.length);
+        }
+        this.argb = argb;
+        this.offset = offset;
+        this.stride = stride;
+        this.width = width;
+        this.height = height;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void getPixels(int[] pixels, int offset, int stride, int startRow, int rows) {
+        int src = this.offset + startRow * this.stride;
+        if (stride == width && this.stride == width) {
+            System.arraycopy(argb, src, pixels, offset, width * rows);
+            return;
+        }
+        for (int i = 0; i < rows; i++) {
+            System.arraycopy(argb, src, pixels, offset, width);
+            src += this.stride;
+            offset += stride;
+        }
+    }
+}
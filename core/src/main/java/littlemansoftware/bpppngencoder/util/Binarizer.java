@@ -0,0 +1,295 @@
+package littlemansoftware.bpppngencoder.util;
+
+import java.util.Arrays;
+
+/**
+ * Turns rows of ARGB pixels of any colour, or the RGB 565 and alpha 8
+ * pixels of Android bitmaps, into 1bpp scanlines.
+ *
+ * <p>{@link #EXACT} is the encoder's own rule: opaque black is black and
+ * everything else white. The other modes look at the luminance,
+ * {@code (77 R + 150 G + 29 B) >> 8}, computed with integers only.
+ * {@link #THRESHOLD} compares it with a cutoff, {@link #ORDERED} with an
+ * 8x8 Bayer matrix and {@link #DIFFUSION} spreads the error of each pixel
+ * to its neighbours, Floyd-Steinberg style.</p>
+ *
+ * <p>A Binarizer only holds its settings and can be shared; the error
+ * rows of {@link #DIFFUSION}, one row wide, are kept in the
+ * {@link EncoderContext}, so a strip can continue where the previous one
+ * of the same image stopped.</p>
+ */
+public class Binarizer {
+
+    /** Opaque black is black, every other colour white. */
+    public static final int EXACT = 0;
+
+    /** White where the luminance reaches the threshold. */
+    public static final int THRESHOLD = 1;
+
+    /** Ordered dithering with an 8x8 Bayer matrix. */
+    public static final int ORDERED = 2;
+
+    /** Floyd-Steinberg error diffusion around the threshold. */
+    public static final int DIFFUSION = 3;
+
+    /** Default luminance cutoff, mid gray. */
+    public static final int DEFAULT_THRESHOLD = 128;
+
+    /** 8x8 Bayer matrix, values 0 through 63. */
+    private static final int[] BAYER = {
+             0, 32,  8, 40,  2, 34, 10, 42,
+            48, 16, 56, 24, 50, 18, 58, 26,
+            12, 44,  4, 36, 14, 46,  6, 38,
+            60, 28, 52, 20, 62, 30, 54, 22,
+             3, 35, 11, 43,  1, 33,  9, 41,
+            51, 19, 59, 27, 49, 17, 57, 25,
+            15, 47,  7, 39, 13, 45,  5, 37,
+            63, 31, 55, 23, 61, 29, 53, 21,
+    };
+
+    private final int mode;
+    private final int threshold;
+
+    /**
+     * @param mode EXACT, THRESHOLD, ORDERED or DIFFUSION.
+     */
+    public Binarizer(int mode) {
+        this(mode, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param mode EXACT, THRESHOLD, ORDERED or DIFFUSION.
+     * @param threshold Luminance from which a pixel is white, 0 through 256;
+     *                  used by THRESHOLD and DIFFUSION.
+     */
+    public Binarizer(int mode, int threshold) {
+        this.mode = mode >= EXACT && mode <= DIFFUSION ? mode : EXACT;
+        this.threshold = Math.max(0, Math.min(256, threshold));
+    }
+
+    /**
+     * Retrieve the mode
+     *
+     * @return EXACT, THRESHOLD, ORDERED or DIFFUSION
+     */
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * Retrieve the luminance threshold
+     *
+     * @return the cutoff, 0 through 256
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Integer luminance of an ARGB pixel, alpha ignored.
+     *
+     * @param argb The pixel.
+     * @return 0 through 255
+     */
+    public static int luminance(int argb) {
+        return (77 * ((argb >> 16) & 0xff) + 150 * ((argb >> 8) & 0xff) + 29 * (argb & 0xff)) >> 8;
+    }
+
+    /**
+     * Integer luminance of an RGB 565 pixel, its channels widened to 8
+     * bits as Bitmap.getPixels does.
+     *
+     * @param rgb565 The pixel.
+     * @return 0 through 255
+     */
+    public static int luminance565(int rgb565) {
+        int r = (rgb565 >> 11) & 0x1f;
+        int g = (rgb565 >> 5) & 0x3f;
+        int b = rgb565 & 0x1f;
+        return (77 * ((r << 3) | (r >> 2)) + 150 * ((g << 2) | (g >> 4)) + 29 * ((b << 3) | (b >> 2))) >> 8;
+    }
+
+    /**
+     * Binarize and pack a block of rows into dst, each row preceded by
+     * its PNG filter type byte.
+     *
+     * @param ctx Holds the luminance row, and the error rows of DIFFUSION.
+     * @param pixels The ARGB pixels, rows stored contiguously.
+     * @param srcPos Index of the first pixel of the first row.
+     * @param width Width of a row in pixels.
+     * @param rows Number of rows to pack.
+     * @param startRow Row of the image the block starts at; 0 starts a new image.
+     * @param filter The filter type byte written before each row.
+     * @param dst The array receiving the scanlines.
+     * @param dstPos Where the first scanline starts in dst.
+     * @return The next place to be written to in dst.
+     */
+    public int packRows(EncoderContext ctx, int[] pixels, int srcPos, int width, int rows, int startRow,
+                        int filter, byte[] dst, int dstPos) {
+        if (mode == EXACT) {
+            return BitPacker.packRows(pixels, srcPos, width, rows, filter, dst, dstPos);
+        }
+        int[] lum = startImage(ctx, width, startRow);
+        for (int i = 0; i < rows; i++) {
+            int p = srcPos + i * width;
+            for (int x = 0; x < width; x++) {
+                lum[x] = luminance(pixels[p + x]);
+            }
+            dst[dstPos++] = (byte) filter;
+            dstPos = binarizeRow(ctx, lum, width, startRow + i, dst, dstPos);
+        }
+        return dstPos;
+    }
+
+    /**
+     * Binarize and pack a block of RGB 565 rows into dst, each row
+     * preceded by its PNG filter type byte. The result is the same as
+     * for the ARGB pixels Bitmap.getPixels would give.
+     *
+     * @param ctx Holds the luminance row, and the error rows of DIFFUSION.
+     * @param pixels The RGB 565 pixels.
+     * @param srcPos Index of the first pixel of the first row.
+     * @param srcStride Distance between rows in pixels.
+     * @param width Width of a row in pixels.
+     * @param rows Number of rows to pack.
+     * @param startRow Row of the image the block starts at; 0 starts a new image.
+     * @param filter The filter type byte written before each row.
+     * @param dst The array receiving the scanlines.
+     * @param dstPos Where the first scanline starts in dst.
+     * @return The next place to be written to in dst.
+     */
+    public int packRows565(EncoderContext ctx, short[] pixels, int srcPos, int srcStride, int width, int rows,
+                           int startRow, int filter, byte[] dst, int dstPos) {
+        if (mode == EXACT) {
+            return BitPacker.packRows565(pixels, srcPos, srcStride, width, rows, filter, dst, dstPos);
+        }
+        int[] lum = startImage(ctx, width, startRow);
+        for (int i = 0; i < rows; i++) {
+            int p = srcPos + i * srcStride;
+            for (int x = 0; x < width; x++) {
+                lum[x] = luminance565(pixels[p + x]);
+            }
+            dst[dstPos++] = (byte) filter;
+            dstPos = binarizeRow(ctx, lum, width, startRow + i, dst, dstPos);
+        }
+        return dstPos;
+    }
+
+    /**
+     * Binarize and pack a block of alpha 8 rows into dst, each row
+     * preceded by its PNG filter type byte. The result is the same as
+     * for the ARGB pixels Bitmap.getPixels would give: black with the
+     * pixel's alpha, so of luminance 0 whatever the alpha.
+     *
+     * @param ctx Holds the luminance row, and the error rows of DIFFUSION.
+     * @param alphas The alpha values.
+     * @param srcPos Index of the first pixel of the first row.
+     * @param srcStride Distance between rows in pixels.
+     * @param width Width of a row in pixels.
+     * @param rows Number of rows to pack.
+     * @param startRow Row of the image the block starts at; 0 starts a new image.
+     * @param filter The filter type byte written before each row.
+     * @param dst The array receiving the scanlines.
+     * @param dstPos Where the first scanline starts in dst.
+     * @return The next place to be written to in dst.
+     */
+    public int packRowsAlpha8(EncoderContext ctx, byte[] alphas, int srcPos, int srcStride, int width, int rows,
+                              int startRow, int filter, byte[] dst, int dstPos) {
+        if (mode == EXACT) {
+            return BitPacker.packRowsAlpha8(alphas, srcPos, srcStride, width, rows, filter, dst, dstPos);
+        }
+        int[] lum = startImage(ctx, width, startRow);
+        Arrays.fill(lum, 0, width, 0);
+        for (int i = 0; i < rows; i++) {
+            dst[dstPos++] = (byte) filter;
+            dstPos = binarizeRow(ctx, lum, width, startRow + i, dst, dstPos);
+        }
+        return dstPos;
+    }
+
+    /**
+     * Get the luminance row, clearing the errors of DIFFUSION at the
+     * start of a new image.
+     */
+    private int[] startImage(EncoderContext ctx, int width, int startRow) {
+        if (mode == DIFFUSION && startRow == 0) {
+            Arrays.fill(ctx.errorRow(width + 2), 0);
+        }
+        return ctx.luminanceRow(width);
+    }
+
+    private int binarizeRow(EncoderContext ctx, int[] lum, int width, int y, byte[] dst, int dstPos) {
+        switch (mode) {
+            case THRESHOLD:
+                return thresholdRow(lum, width, dst, dstPos);
+            case ORDERED:
+                return orderedRow(lum, width, y, dst, dstPos);
+            default:
+                return diffuseRow(ctx, lum, width, dst, dstPos);
+        }
+    }
+
+    private int thresholdRow(int[] lum, int width, byte[] dst, int dstPos) {
+        int t = threshold;
+        int b = 0;
+        for (int x = 0; x < width; x++) {
+            // (t - 1 - lum) >>> 31 is 1 when lum >= t
+            b = (b << 1) | ((t - 1 - lum[x]) >>> 31);
+            if ((x & 7) == 7) {
+                dst[dstPos++] = (byte) b;
+                b = 0;
+            }
+        }
+        return flush(b, width, dst, dstPos);
+    }
+
+    private static int orderedRow(int[] lum, int width, int y, byte[] dst, int dstPos) {
+        int row = (y & 7) << 3;
+        int b = 0;
+        for (int x = 0; x < width; x++) {
+            // cell thresholds spread evenly over 2..254
+            int t = BAYER[row + (x & 7)] * 4 + 2;
+            b = (b << 1) | ((t - 1 - lum[x]) >>> 31);
+            if ((x & 7) == 7) {
+                dst[dstPos++] = (byte) b;
+                b = 0;
+            }
+        }
+        return flush(b, width, dst, dstPos);
+    }
+
+    private int diffuseRow(EncoderContext ctx, int[] lum, int width, byte[] dst, int dstPos) {
+        // errors are kept in sixteenths, pixel x at index x + 1
+        int[] cur = ctx.errorRow(width + 2);
+        int[] next = ctx.nextErrorRow(width + 2);
+        Arrays.fill(next, 0, width + 2, 0);
+        int t = threshold;
+        int carry = 0;
+        int b = 0;
+        for (int x = 0; x < width; x++) {
+            int v = lum[x] + ((cur[x + 1] + carry) >> 4);
+            int bit = (t - 1 - v) >>> 31;
+            int e = v - (bit * 255);
+            carry = e * 7;
+            next[x] += e * 3;
+            next[x + 1] += e * 5;
+            next[x + 2] += e;
+            b = (b << 1) | bit;
+            if ((x & 7) == 7) {
+                dst[dstPos++] = (byte) b;
+                b = 0;
+            }
+        }
+        ctx.swapErrorRows();
+        return flush(b, width, dst, dstPos);
+    }
+
+    /** Write the partial last byte of a row, padding bits 0. */
+    private static int flush(int b, int width, byte[] dst, int dstPos) {
+        int rest = width & 7;
+        if (rest != 0) {
+            dst[dstPos++] = (byte) (b << (8 - rest));
+        }
+        return dstPos;
+    }
+}
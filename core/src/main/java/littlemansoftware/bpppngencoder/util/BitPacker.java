@@ -0,0 +1,237 @@
+package littlemansoftware.bpppngencoder.util;
+
+/**
+ * Packs rows of ARGB pixels, or of the RGB 565 and alpha 8 pixels of
+ * Android bitmaps, into 1bpp PNG scanlines.
+ *
+ * <p>Each row is walked in groups of 8 pixels and the bits are set with
+ * shifts and masks only; the partial last byte of a row is handled once,
+ * after the main loop. Nothing is allocated per pixel or per row.</p>
+ *
+ * <p>A pixel equal to {@link #INK} (opaque black) packs to a 0 bit, every
+ * other value packs to a 1 bit, matching the black/white palette written
+ * by {@link PngEncoder}.</p>
+ */
+public final class BitPacker {
+
+    /** The ARGB value that packs to a 0 bit (same as Color.BLACK). */
+    public static final int INK = 0xFF000000;
+
+    private BitPacker() {
+    }
+
+    /**
+     * Number of bytes needed to hold one packed row, without the filter byte.
+     *
+     * @param width Width of the row in pixels.
+     * @return bytes per packed row
+     */
+    public static int bytesPerRow(int width) {
+        return (width + 7) >>> 3;
+    }
+
+    /**
+     * Pack one row of pixels into dst.
+     * Padding bits of the last byte are left as 0.
+     *
+     * @param pixels The ARGB pixels.
+     * @param srcPos Index of the first pixel of the row.
+     * @param width Width of the row in pixels.
+     * @param dst The array receiving the packed row.
+     * @param dstPos Where the packed row starts in dst.
+     * @return The next place to be written to in dst.
+     */
+    public static int packRow(int[] pixels, int srcPos, int width, byte[] dst, int dstPos) {
+        int p = srcPos;
+        int end = srcPos + (width & ~7);
+
+        while (p < end) {
+            // (d | -d) >>> 31 is 0 when d == 0 and 1 otherwise, without a branch
+            int d0 = pixels[p] ^ INK;
+            int d1 = pixels[p + 1] ^ INK;
+            int d2 = pixels[p + 2] ^ INK;
+            int d3 = pixels[p + 3] ^ INK;
+            int d4 = pixels[p + 4] ^ INK;
+            int d5 = pixels[p + 5] ^ INK;
+            int d6 = pixels[p + 6] ^ INK;
+            int d7 = pixels[p + 7] ^ INK;
+            dst[dstPos++] = (byte) ((((d0 | -d0) >>> 31) << 7)
+                    | (((d1 | -d1) >>> 31) << 6)
+                    | (((d2 | -d2) >>> 31) << 5)
+                    | (((d3 | -d3) >>> 31) << 4)
+                    | (((d4 | -d4) >>> 31) << 3)
+                    | (((d5 | -d5) >>> 31) << 2)
+                    | (((d6 | -d6) >>> 31) << 1)
+                    | ((d7 | -d7) >>> 31));
+            p += 8;
+        }
+
+        int rest = width & 7;
+        if (rest != 0) {
+            int b = 0;
+            for (int k = 0; k < rest; k++) {
+                int d = pixels[p + k] ^ INK;
+                b |= ((d | -d) >>> 31) << (7 - k);
+            }
+            dst[dstPos++] = (byte) b;
+        }
+        return dstPos;
+    }
+
+    /**
+     * Pack a block of rows into dst, each row preceded by its PNG filter type byte.
+     *
+     * @param pixels The ARGB pixels, rows stored contiguously.
+     * @param srcPos Index of the first pixel of the first row.
+     * @param width Width of a row in pixels.
+     * @param rows Number of rows to pack.
+     * @param filter The filter type byte written before each row.
+     * @param dst The array receiving the scanlines.
+     * @param dstPos Where the first scanline starts in dst.
+     * @return The next place to be written to in dst.
+     */
+    public static int packRows(int[] pixels, int srcPos, int width, int rows, int filter,
+                               byte[] dst, int dstPos) {
+        for (int i = 0; i < rows; i++) {
+            dst[dstPos++] = (byte) filter;
+            dstPos = packRow(pixels, srcPos, width, dst, dstPos);
+            srcPos += width;
+        }
+        return dstPos;
+    }
+
+    /**
+     * Pack one row of RGB 565 pixels into dst; 0, black, packs to a 0
+     * bit as {@link #INK} does. Padding bits of the last byte are left as 0.
+     *
+     * @param pixels The RGB 565 pixels.
+     * @param srcPos Index of the first pixel of the row.
+     * @param width Width of the row in pixels.
+     * @param dst The array receiving the packed row.
+     * @param dstPos Where the packed row starts in dst.
+     * @return The next place to be written to in dst.
+     */
+    public static int packRow565(short[] pixels, int srcPos, int width, byte[] dst, int dstPos) {
+        int p = srcPos;
+        int end = srcPos + (width & ~7);
+        while (p < end) {
+            int b = 0;
+            for (int k = 0; k < 8; k++) {
+                int d = pixels[p + k];
+                b = (b << 1) | ((d | -d) >>> 31);
+            }
+            dst[dstPos++] = (byte) b;
+            p += 8;
+        }
+        int rest = width & 7;
+        if (rest != 0) {
+            int b = 0;
+            for (int k = 0; k < rest; k++) {
+                int d = pixels[p + k];
+                b |= ((d | -d) >>> 31) << (7 - k);
+            }
+            dst[dstPos++] = (byte) b;
+        }
+        return dstPos;
+    }
+
+    /**
+     * Pack one row of alpha 8 pixels into dst; fully opaque, which an
+     * ALPHA_8 Bitmap reads back as opaque black, packs to a 0 bit.
+     * Padding bits of the last byte are left as 0.
+     *
+     * @param alphas The alpha values.
+     * @param srcPos Index of the first pixel of the row.
+     * @param width Width of the row in pixels.
+     * @param dst The array receiving the packed row.
+     * @param dstPos Where the packed row starts in dst.
+     * @return The next place to be written to in dst.
+     */
+    public static int packRowAlpha8(byte[] alphas, int srcPos, int width, byte[] dst, int dstPos) {
+        int p = srcPos;
+        int end = srcPos + (width & ~7);
+        while (p < end) {
+            int b = 0;
+            for (int k = 0; k < 8; k++) {
+                int d = ~alphas[p + k] & 0xff;
+                b = (b << 1) | ((d | -d) >>> 31);
+            }
+            dst[dstPos++] = (byte) b;
+            p += 8;
+        }
+        int rest = width & 7;
+        if (rest != 0) {
+            int b = 0;
+            for (int k = 0; k < rest; k++) {
+                int d = ~alphas[p + k] & 0xff;
+                b |= ((d | -d) >>> 31) << (7 - k);
+            }
+            dst[dstPos++] = (byte) b;
+        }
+        return dstPos;
+    }
+
+    /**
+     * Pack a block of RGB 565 rows into dst, each row preceded by its PNG filter type byte.
+     *
+     * @param pixels The RGB 565 pixels.
+     * @param srcPos Index of the first pixel of the first row.
+     * @param srcStride Distance between rows in pixels.
+     * @param width Width of a row in pixels.
+     * @param rows Number of rows to pack.
+     * @param filter The filter type byte written before each row.
+     * @param dst The array receiving the scanlines.
+     * @param dstPos Where the first scanline starts in dst.
+     * @return The next place to be written to in dst.
+     */
+    public static int packRows565(short[] pixels, int srcPos, int srcStride, int width, int rows, int filter,
+                                  byte[] dst, int dstPos) {
+        for (int i = 0; i < rows; i++) {
+            dst[dstPos++] = (byte) filter;
+            dstPos = packRow565(pixels, srcPos, width, dst, dstPos);
+            srcPos += srcStride;
+        }
+        return dstPos;
+    }
+
+    /**
+     * Pack a block of alpha 8 rows into dst, each row preceded by its PNG filter type byte.
+     *
+     * @param alphas The alpha values.
+     * @param srcPos Index of the first pixel of the first row.
+     * @param srcStride Distance between rows in pixels.
+     * @param width Width of a row in pixels.
+     * @param rows Number of rows to pack.
+     * @param filter The filter type byte written before each row.
+     * @param dst The array receiving the scanlines.
+     * @param dstPos Where the first scanline starts in dst.
+     * @return The next place to be written to in dst.
+     */
+    public static int packRowsAlpha8(byte[] alphas, int srcPos, int srcStride, int width, int rows, int filter,
+                                     byte[] dst, int dstPos) {
+        for (int i = 0; i < rows; i++) {
+            dst[dstPos++] = (byte) filter;
+            dstPos = packRowAlpha8(alphas, srcPos, width, dst, dstPos);
+            srcPos += srcStride;
+        }
+        return dstPos;
+    }
+
+    /**
+     * Invert the bits of a packed row in place, keeping the padding bits at 0.
+     *
+     * @param row The packed row.
+     * @param pos Where the row starts.
+     * @param width Width of the row in pixels.
+     */
+    public static void invertRow(byte[] row, int pos, int width) {
+        int full = width >>> 3;
+        for (int i = 0; i < full; i++) {
+            row[pos + i] = (byte) ~row[pos + i];
+        }
+        int rest = width & 7;
+        if (rest != 0) {
+            row[pos + full] = (byte) ((row[pos + full] ^ 0xff) & (0xff00 >>> rest));
+        }
+    }
+}
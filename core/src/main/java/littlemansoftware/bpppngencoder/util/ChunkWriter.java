@@ -0,0 +1,600 @@
+package littlemansoftware.bpppngencoder.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes PNG chunks into a byte array.
+ *
+ * <p>A chunk is opened with {@link #beginChunk(byte[])}, its payload
+ * written in place and closed with {@link #endChunk()}, which fills in
+ * the length and computes the CRC in a single pass over type and
+ * payload. Nothing is allocated per chunk: the payload is never copied
+ * into a chunk array of its own.</p>
+ *
+ * <p>The array is either owned by the writer and grows as needed, or
+ * given by the caller and fixed, in which case writing past its end
+ * throws {@link ArrayIndexOutOfBoundsException}. The whole chunk
+ * methods check the room for the chunk before writing any of it.</p>
+ */
+public class ChunkWriter {
+
+    /** PNG signature. */
+    public static final byte[] SIGNATURE = {-119, 80, 78, 71, 13, 10, 26, 10};
+
+    public static final byte[] IHDR = {'I', 'H', 'D', 'R'};
+    public static final byte[] PLTE = {'P', 'L', 'T', 'E'};
+    public static final byte[] IDAT = {'I', 'D', 'A', 'T'};
+    public static final byte[] IEND = {'I', 'E', 'N', 'D'};
+    public static final byte[] PHYS = {'p', 'H', 'Y', 's'};
+    public static final byte[] TEXT = {'t', 'E', 'X', 't'};
+    public static final byte[] ZTXT = {'z', 'T', 'X', 't'};
+    public static final byte[] TIME = {'t', 'I', 'M', 'E'};
+    public static final byte[] ACTL = {'a', 'c', 'T', 'L'};
+    public static final byte[] FCTL = {'f', 'c', 'T', 'L'};
+    public static final byte[] FDAT = {'f', 'd', 'A', 'T'};
+
+    /** fcTL dispose op: leave the frame on the canvas. */
+    public static final int DISPOSE_NONE = 0;
+
+    /** fcTL dispose op: clear the frame's region to transparent black. */
+    public static final int DISPOSE_BACKGROUND = 1;
+
+    /** fcTL dispose op: put back what was under the frame's region. */
+    public static final int DISPOSE_PREVIOUS = 2;
+
+    /** fcTL blend op: the frame replaces its region. */
+    public static final int BLEND_SOURCE = 0;
+
+    /** fcTL blend op: the frame is alpha blended over its region. */
+    public static final int BLEND_OVER = 1;
+
+    /** Payload bytes of an fcTL chunk. */
+    public static final int FCTL_LENGTH = 26;
+
+    /** pHYs unit: metre. */
+    public static final int UNIT_METRE = 1;
+
+    /** Longest keyword of a text chunk. */
+    public static final int MAX_KEYWORD = 79;
+
+    private final CRC32 crc = new CRC32();
+
+    private byte[] buffer;
+    private int start;
+    private int pos;
+    private boolean growable;
+    private int resizes;
+
+    /** Where the open chunk starts, -1 when none is open. */
+    private int chunkStart = -1;
+
+    private Calendar calendar;
+
+    /** Latin-1 text of zTXt chunks, kept between chunks. */
+    private byte[] scratch = new byte[0];
+
+    /**
+     * A writer with its own buffer, grown as needed.
+     *
+     * @param capacity Initial size of the buffer.
+     */
+    public ChunkWriter(int capacity) {
+        reset(new byte[Math.max(16, capacity)], 0, true);
+    }
+
+    /**
+     * A writer filling a caller's array from an offset. The array does not grow.
+     *
+     * @param buffer The array to write to.
+     * @param offset Where to start.
+     */
+    public ChunkWriter(byte[] buffer, int offset) {
+        reset(buffer, offset, false);
+    }
+
+    /**
+     * Start over in another array.
+     *
+     * @param buffer The array to write to.
+     * @param offset Where to start.
+     * @param growable Whether the writer may replace the array by a larger copy.
+     */
+    public void reset(byte[] buffer, int offset, boolean growable) {
+        this.buffer = buffer;
+        this.start = offset;
+        this.pos = offset;
+        this.growable = growable;
+        this.resizes = 0;
+        this.chunkStart = -1;
+    }
+
+    /** Start over at the offset of the current array. */
+    public void reset() {
+        pos = start;
+        chunkStart = -1;
+    }
+
+    /**
+     * Retrieve the array written to; it may have been replaced by a larger one
+     *
+     * @return the array
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Retrieve the next place to be written to
+     *
+     * @return index into the array
+     */
+    public int getPosition() {
+        return pos;
+    }
+
+    /**
+     * Retrieve the number of bytes written since the offset
+     *
+     * @return bytes written
+     */
+    public int length() {
+        return pos - start;
+    }
+
+    /**
+     * Retrieve the number of times the array was grown since the last
+     * {@link #reset(byte[], int, boolean)}
+     *
+     * @return number of growths
+     */
+    public int getResizeCount() {
+        return resizes;
+    }
+
+    /**
+     * Make room for n more bytes at the position, e.g. for a deflater
+     * writing into {@link #getBuffer()} directly; see {@link #advance(int)}.
+     *
+     * @param n Bytes about to be written.
+     */
+    public void ensureCapacity(int n) {
+        if (pos + n <= buffer.length) {
+            return;
+        }
+        if (!growable) {
+            throw new ArrayIndexOutOfBoundsException("Need " + (pos + n) + " bytes, have " + buffer.length);
+        }
+        byte[] grown = new byte[Math.max(pos + n, buffer.length + (buffer.length >> 1))];
+        System.arraycopy(buffer, 0, grown, 0, pos);
+        buffer = grown;
+        resizes++;
+    }
+
+    /**
+     * Move the position past bytes written into the array directly.
+     *
+     * @param n The number of bytes written.
+     */
+    public void advance(int n) {
+        pos += n;
+    }
+
+    /** Write the PNG signature. */
+    public void signature() {
+        bytes(SIGNATURE, 0, SIGNATURE.length);
+    }
+
+    /**
+     * Open a chunk; its payload follows until {@link #endChunk()}.
+     *
+     * @param type The four byte chunk type.
+     */
+    public void beginChunk(byte[] type) {
+        ensureCapacity(8);
+        chunkStart = pos;
+        pos += 4;
+        System.arraycopy(type, 0, buffer, pos, 4);
+        pos += 4;
+    }
+
+    /**
+     * Close the open chunk: fill in its length and append the CRC of type and payload.
+     *
+     * @return the number of bytes of the whole chunk
+     */
+    public int endChunk() {
+        int length = pos - chunkStart - 8;
+        putInt4(buffer, chunkStart, length);
+        crc.reset();
+        crc.update(buffer, chunkStart + 4, length + 4);
+        int4((int) crc.getValue());
+        int n = pos - chunkStart;
+        chunkStart = -1;
+        return n;
+    }
+
+    /**
+     * Write a four-byte integer, most significant byte first.
+     *
+     * @param n The integer.
+     */
+    public void int4(int n) {
+        ensureCapacity(4);
+        putInt4(buffer, pos, n);
+        pos += 4;
+    }
+
+    /**
+     * Write a two-byte integer, most significant byte first.
+     *
+     * @param n The integer.
+     */
+    public void int2(int n) {
+        ensureCapacity(2);
+        buffer[pos++] = (byte) (n >> 8);
+        buffer[pos++] = (byte) n;
+    }
+
+    /**
+     * Write a single byte.
+     *
+     * @param b The byte, in the low 8 bits.
+     */
+    public void byte1(int b) {
+        ensureCapacity(1);
+        buffer[pos++] = (byte) b;
+    }
+
+    /**
+     * Write bytes.
+     *
+     * @param data The bytes.
+     * @param offset Where they start.
+     * @param length How many to write.
+     */
+    public void bytes(byte[] data, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(data, offset, buffer, pos, length);
+        pos += length;
+    }
+
+    /**
+     * Write a whole chunk.
+     *
+     * @param type The chunk type.
+     * @param data The payload.
+     * @param offset Where it starts.
+     * @param length Its length.
+     */
+    public void chunk(byte[] type, byte[] data, int offset, int length) {
+        ensureCapacity(length + 12);
+        beginChunk(type);
+        bytes(data, offset, length);
+        endChunk();
+    }
+
+    /**
+     * Write an IHDR chunk, deflate compression and the standard filter method.
+     *
+     * @param width Image width.
+     * @param height Image height.
+     * @param depth Bits per sample.
+     * @param colorType PNG colour type, e.g. 0 for grey or 3 for a palette.
+     * @param interlace 0 for none, 1 for Adam7.
+     */
+    public void ihdr(int width, int height, int depth, int colorType, int interlace) {
+        ensureCapacity(25);
+        beginChunk(IHDR);
+        int4(width);
+        int4(height);
+        byte1(depth);
+        byte1(colorType);
+        byte1(0); // compression method
+        byte1(0); // filter method
+        byte1(interlace);
+        endChunk();
+    }
+
+    /**
+     * Write a PLTE chunk.
+     *
+     * @param colors RGB colours, the alpha byte is ignored.
+     * @param count Number of entries, at least 1.
+     */
+    public void plte(int[] colors, int count) {
+        ensureCapacity(count * 3 + 12);
+        beginChunk(PLTE);
+        for (int i = 0; i < count; i++) {
+            int c = colors[i];
+            buffer[pos++] = (byte) (c >> 16);
+            buffer[pos++] = (byte) (c >> 8);
+            buffer[pos++] = (byte) c;
+        }
+        endChunk();
+    }
+
+    /**
+     * Write compressed image data as IDAT chunks.
+     *
+     * @param data The zlib stream.
+     * @param offset Where it starts.
+     * @param length Its length.
+     * @param maxChunk Largest payload per chunk, 0 for a single chunk.
+     */
+    public void idat(byte[] data, int offset, int length, int maxChunk) {
+        if (maxChunk <= 0 || length <= maxChunk) {
+            chunk(IDAT, data, offset, length);
+            return;
+        }
+        int chunks = (length + maxChunk - 1) / maxChunk;
+        ensureCapacity(length + chunks * 12);
+        for (int done = 0; done < length; done += maxChunk) {
+            chunk(IDAT, data, offset + done, Math.min(maxChunk, length - done));
+        }
+    }
+
+    /**
+     * Write an acTL chunk, making the PNG an animated one.
+     *
+     * @param frames Number of frames, the default image included when it is the first frame.
+     * @param plays Times to play the animation, 0 for ever.
+     */
+    public void actl(int frames, int plays) {
+        ensureCapacity(20);
+        beginChunk(ACTL);
+        int4(frames);
+        int4(plays);
+        endChunk();
+    }
+
+    /**
+     * Write an fcTL chunk, the region and timing of the frame whose data follows.
+     *
+     * @param sequence Sequence number of the chunk.
+     * @param width Width of the region.
+     * @param height Height of the region.
+     * @param x Left of the region.
+     * @param y Top of the region.
+     * @param delayNum Delay before the next frame, in units of 1 / delayDen seconds.
+     * @param delayDen Units of the delay, 0 for hundredths.
+     * @param dispose One of the DISPOSE_ ops.
+     * @param blend One of the BLEND_ ops.
+     */
+    public void fctl(int sequence, int width, int height, int x, int y, int delayNum, int delayDen,
+                     int dispose, int blend) {
+        ensureCapacity(FCTL_LENGTH + 12);
+        beginChunk(FCTL);
+        int4(sequence);
+        int4(width);
+        int4(height);
+        int4(x);
+        int4(y);
+        int2(delayNum);
+        int2(delayDen);
+        byte1(dispose);
+        byte1(blend);
+        endChunk();
+    }
+
+    /**
+     * Write compressed frame data as fdAT chunks, each with its own
+     * sequence number.
+     *
+     * @param sequence Sequence number of the first chunk.
+     * @param data The zlib stream.
+     * @param offset Where it starts.
+     * @param length Its length.
+     * @param maxChunk Largest data per chunk, 0 for a single chunk.
+     * @return the sequence number after the last chunk
+     */
+    public int fdat(int sequence, byte[] data, int offset, int length, int maxChunk) {
+        if (maxChunk <= 0 || length <= maxChunk) {
+            maxChunk = Math.max(1, length);
+        }
+        int chunks = Math.max(1, (length + maxChunk - 1) / maxChunk);
+        ensureCapacity(length + chunks * 16);
+        int done = 0;
+        do {
+            int n = Math.min(maxChunk, length - done);
+            beginChunk(FDAT);
+            int4(sequence++);
+            bytes(data, offset + done, n);
+            endChunk();
+            done += n;
+        } while (done < length);
+        return sequence;
+    }
+
+    /** Write an IEND chunk. */
+    public void iend() {
+        ensureCapacity(12);
+        beginChunk(IEND);
+        endChunk();
+    }
+
+    /**
+     * Write a pHYs chunk.
+     *
+     * @param pixelsPerUnitX Horizontal pixels per unit.
+     * @param pixelsPerUnitY Vertical pixels per unit.
+     * @param unit 0 for an aspect ratio only, {@link #UNIT_METRE} for metres.
+     */
+    public void phys(int pixelsPerUnitX, int pixelsPerUnitY, int unit) {
+        ensureCapacity(21);
+        beginChunk(PHYS);
+        int4(pixelsPerUnitX);
+        int4(pixelsPerUnitY);
+        byte1(unit);
+        endChunk();
+    }
+
+    /**
+     * Write a pHYs chunk for a resolution in dots per inch.
+     *
+     * @param dpi Pixels per inch, in both directions.
+     */
+    public void physDpi(int dpi) {
+        int ppm = dpiToMetre(dpi);
+        phys(ppm, ppm, UNIT_METRE);
+    }
+
+    /**
+     * Convert dots per inch to pixels per metre, rounded.
+     *
+     * @param dpi Pixels per inch.
+     * @return pixels per metre
+     */
+    public static int dpiToMetre(int dpi) {
+        return (int) Math.round(dpi / 0.0254);
+    }
+
+    /**
+     * Write a tEXt chunk. Characters above 255 are written as '?', as
+     * the chunk holds Latin-1.
+     *
+     * @param keyword 1 to 79 characters, e.g. "Title" or "Software".
+     * @param text The text.
+     * @throws IllegalArgumentException if the keyword is empty or too long
+     */
+    public void text(String keyword, String text) {
+        checkKeyword(keyword);
+        ensureCapacity(keyword.length() + text.length() + 13);
+        beginChunk(TEXT);
+        latin1(keyword);
+        buffer[pos++] = 0;
+        latin1(text);
+        endChunk();
+    }
+
+    /**
+     * Write a zTXt chunk, the text compressed with the given deflater.
+     *
+     * @param keyword 1 to 79 characters.
+     * @param text The text, Latin-1.
+     * @param deflater Deflater to use; it is reset before and after.
+     * @throws IllegalArgumentException if the keyword is empty or too long
+     */
+    public void ztxt(String keyword, String text, Deflater deflater) {
+        checkKeyword(keyword);
+        ensureCapacity(keyword.length() + 14);
+        beginChunk(ZTXT);
+        latin1(keyword);
+        buffer[pos++] = 0;
+        buffer[pos++] = 0; // compression method
+
+        int n = text.length();
+        if (scratch.length < n) {
+            scratch = new byte[n];
+        }
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            scratch[i] = (byte) (c < 256 ? c : '?');
+        }
+        deflater.reset();
+        deflater.setInput(scratch, 0, n);
+        deflater.finish();
+        // the zlib bound of the text, what PngEncoder budgets for the chunk
+        ensureCapacity(n + ((n + 7) >> 3) + ((n + 63) >> 6) + 11);
+        while (!deflater.finished()) {
+            int k = deflater.deflate(buffer, pos, buffer.length - pos);
+            pos += k;
+            if (k == 0 && pos == buffer.length) {
+                // out of room: grows the array, or throws for a caller's array
+                ensureCapacity(64);
+            }
+        }
+        deflater.reset();
+        endChunk();
+    }
+
+    /**
+     * Write a tIME chunk, the time of last modification in UTC.
+     *
+     * @param millis Milliseconds since the epoch.
+     */
+    public void time(long millis) {
+        if (calendar == null) {
+            calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        }
+        calendar.setTimeInMillis(millis);
+        ensureCapacity(19);
+        beginChunk(TIME);
+        int2(calendar.get(Calendar.YEAR));
+        byte1(calendar.get(Calendar.MONTH) + 1);
+        byte1(calendar.get(Calendar.DAY_OF_MONTH));
+        byte1(calendar.get(Calendar.HOUR_OF_DAY));
+        byte1(calendar.get(Calendar.MINUTE));
+        byte1(calendar.get(Calendar.SECOND));
+        endChunk();
+    }
+
+    /**
+     * Compute the CRC of a chunk whose payload is written elsewhere,
+     * e.g. straight into a ByteBuffer.
+     *
+     * @param type The chunk type.
+     * @param data The payload.
+     * @param offset Where it starts.
+     * @param length Its length.
+     * @return the CRC to write after the payload
+     */
+    public int crc(byte[] type, byte[] data, int offset, int length) {
+        crc.reset();
+        crc.update(type, 0, 4);
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Write the bytes since the offset to a stream and start over.
+     *
+     * @param out The stream.
+     * @return the number of bytes written
+     * @throws IOException if the stream fails
+     */
+    public int writeTo(OutputStream out) throws IOException {
+        int n = pos - start;
+        out.write(buffer, start, n);
+        reset();
+        return n;
+    }
+
+    /**
+     * Write a four-byte integer into an array, most significant byte first.
+     *
+     * @param b The array.
+     * @param pos Where to write.
+     * @param n The integer.
+     */
+    public static void putInt4(byte[] b, int pos, int n) {
+        b[pos] = (byte) ((n >> 24) & 0xff);
+        b[pos + 1] = (byte) ((n >> 16) & 0xff);
+        b[pos + 2] = (byte) ((n >> 8) & 0xff);
+        b[pos + 3] = (byte) (n & 0xff);
+    }
+
+    private void latin1(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            buffer[pos++] = (byte) (c < 256 ? c : '?');
+        }
+    }
+
+    /**
+     * Check that a keyword fits a text chunk.
+     *
+     * @param keyword The keyword.
+     * @throws IllegalArgumentException if it is empty or too long
+     */
+    static void checkKeyword(String keyword) {
+        if (keyword.length() < 1 || keyword.length() > MAX_KEYWORD) {
+            throw new IllegalArgumentException("Keyword must have 1 to " + MAX_KEYWORD
+                    + " characters: \"" + keyword + "\"");
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package littlemansoftware.bpppngencoder.util;
+
+import java.util.zip.Deflater;
+
+/**
+ * A combination of deflate level, deflate strategy and PNG row filter.
+ *
+ * <p>Returned by {@link PngEncoder#getBestSettings()} after a best size
+ * search, and accepted by {@link PngEncoder#setCompressionSettings} to
+ * pin a combination for similar frames.</p>
+ */
+public final class CompressionSettings {
+
+    private final int level;
+    private final int strategy;
+    private final int filter;
+
+    /**
+     * @param level deflate level, 0 through 9
+     * @param strategy Deflater.DEFAULT_STRATEGY, FILTERED or HUFFMAN_ONLY
+     * @param filter one of the PngEncoder FILTER_ constants
+     */
+    public CompressionSettings(int level, int strategy, int filter) {
+        this.level = level;
+        this.strategy = strategy;
+        this.filter = filter;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getStrategy() {
+        return strategy;
+    }
+
+    public int getFilter() {
+        return filter;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CompressionSettings)) {
+            return false;
+        }
+        CompressionSettings other = (CompressionSettings) o;
+        return level == other.level && strategy == other.strategy && filter == other.filter;
+    }
+
+    @Override
+    public int hashCode() {
+        return (level * 31 + strategy) * 31 + filter;
+    }
+
+    @Override
+    public String toString() {
+        String strategyName;
+        switch (strategy) {
+            case Deflater.FILTERED:
+                strategyName = "FILTERED";
+                break;
+            case Deflater.HUFFMAN_ONLY:
+                strategyName = "HUFFMAN_ONLY";
+                break;
+            default:
+                strategyName = "DEFAULT";
+                break;
+        }
+        String[] filterNames = {"NONE", "SUB", "UP", "AVERAGE", "PAETH", "ADAPTIVE"};
+        String filterName = filter >= 0 && filter < filterNames.length ? filterNames[filter] : String.valueOf(filter);
+        return "level=" + level + " strategy=" + strategyName + " filter=" + filterName;
+    }
+}
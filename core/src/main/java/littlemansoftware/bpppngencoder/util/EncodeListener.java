@@ -0,0 +1,17 @@
+package littlemansoftware.bpppngencoder.util;
+
+/**
+ * Receives the metrics of each encode, see
+ * {@link PngEncoder#setEncodeListener(EncodeListener)}.
+ */
+public interface EncodeListener {
+
+    /**
+     * Called on the encoding thread when an encode has finished.
+     * The metrics object is reused by the next encode of the same
+     * encoder; copy what should be kept.
+     *
+     * @param metrics Time and bytes of the encode.
+     */
+    void onEncoded(EncodeMetrics metrics);
+}
@@ -0,0 +1,169 @@
+package littlemansoftware.bpppngencoder.util;
+
+/**
+ * Where the time and bytes of one encode went.
+ *
+ * <p>Times are in nanoseconds. Stages an encode does not go through,
+ * e.g. deflate on a cache hit, stay at 0. When streaming, the stages run
+ * once per strip and their times are summed.</p>
+ */
+public class EncodeMetrics {
+
+    long fetchNanos;
+    long packNanos;
+    long filterNanos;
+    long deflateNanos;
+    long writeNanos;
+    long trimNanos;
+    long totalNanos;
+    long rawBytes;
+    long compressedBytes;
+    long outputBytes;
+    int resizes;
+    int reusedRows;
+    boolean cacheHit;
+
+    /** Clear everything for a new encode. */
+    void reset() {
+        fetchNanos = 0;
+        packNanos = 0;
+        filterNanos = 0;
+        deflateNanos = 0;
+        writeNanos = 0;
+        trimNanos = 0;
+        totalNanos = 0;
+        rawBytes = 0;
+        compressedBytes = 0;
+        outputBytes = 0;
+        resizes = 0;
+        reusedRows = 0;
+        cacheHit = false;
+    }
+
+    /**
+     * Retrieve the pixel fetch time
+     *
+     * @return time spent reading pixels from the Bitmap, or copying the packed image
+     */
+    public long getFetchNanos() {
+        return fetchNanos;
+    }
+
+    /**
+     * Retrieve the packing time
+     *
+     * @return time spent packing pixels to 1bpp, binarizing included
+     */
+    public long getPackNanos() {
+        return packNanos;
+    }
+
+    /**
+     * Retrieve the filter time
+     *
+     * @return time spent applying row filters
+     */
+    public long getFilterNanos() {
+        return filterNanos;
+    }
+
+    /**
+     * Retrieve the deflate time
+     *
+     * @return time spent compressing, all trials of a best size search included
+     */
+    public long getDeflateNanos() {
+        return deflateNanos;
+    }
+
+    /**
+     * Retrieve the chunk writing time
+     *
+     * @return time spent writing chunks and computing their CRCs
+     */
+    public long getWriteNanos() {
+        return writeNanos;
+    }
+
+    /**
+     * Retrieve the trim time
+     *
+     * @return time spent copying the PNG into an array of its exact size
+     */
+    public long getTrimNanos() {
+        return trimNanos;
+    }
+
+    /**
+     * Retrieve the total time
+     *
+     * @return time from the start to the end of the encode
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * Retrieve the raw scanline bytes
+     *
+     * @return bytes of packed scanlines, filter type bytes included
+     */
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    /**
+     * Retrieve the compressed bytes
+     *
+     * @return bytes of IDAT payload
+     */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * Retrieve the output bytes
+     *
+     * @return length of the PNG
+     */
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    /**
+     * Retrieve the number of buffer resizes
+     *
+     * @return times a working buffer had to grow during the encode
+     */
+    public int getResizes() {
+        return resizes;
+    }
+
+    /**
+     * Retrieve the rows not deflated again
+     *
+     * @return rows whose compressed bytes were kept from the last frame,
+     *         see {@link PngEncoder#setIncrementalRows(int)}
+     */
+    public int getReusedRows() {
+        return reusedRows;
+    }
+
+    /**
+     * Retrieve whether the PNG came from the cache
+     *
+     * @return true on a {@link PngCache} hit
+     */
+    public boolean isCacheHit() {
+        return cacheHit;
+    }
+
+    @Override
+    public String toString() {
+        return "fetch=" + fetchNanos + " pack=" + packNanos + " filter=" + filterNanos
+                + " deflate=" + deflateNanos + " write=" + writeNanos + " trim=" + trimNanos
+                + " total=" + totalNanos + " raw=" + rawBytes + " compressed=" + compressedBytes
+                + " output=" + outputBytes + " resizes=" + resizes
+                + (reusedRows > 0 ? " reused=" + reusedRows : "") + (cacheHit ? " cacheHit" : "");
+    }
+}
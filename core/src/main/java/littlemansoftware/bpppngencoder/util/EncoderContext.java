@@ -0,0 +1,396 @@
+package littlemansoftware.bpppngencoder.util;
+
+import java.util.zip.Deflater;
+
+/**
+ * Scratch state reused across {@link PngEncoder#pngEncode()} calls.
+ *
+ * <p>Holds the Deflater, which is reset rather than recreated, and the
+ * pixel, scanline, compressed and output buffers. Buffers only grow, so
+ * encoding frames of the same size again allocates nothing here.</p>
+ *
+ * <p>A context must only be used by one encode at a time. Each thread
+ * gets its own through {@link #current()}; a thread that stops encoding
+ * should call {@link #releaseCurrent()} so the native zlib memory of its
+ * Deflater is freed straight away instead of on finalization.</p>
+ */
+public class EncoderContext {
+
+    private static final ThreadLocal<EncoderContext> LOCAL = new ThreadLocal<EncoderContext>() {
+        @Override
+        protected EncoderContext initialValue() {
+            return new EncoderContext();
+        }
+    };
+
+    /** The deflater, created on first use. */
+    private Deflater deflater;
+
+    /** The plain Java deflater, created on first use. */
+    private SparseDeflater sparseDeflater;
+
+    /** ARGB pixels of the rows being packed. */
+    private int[] pixels = new int[0];
+
+    /** RGB 565 pixels of the image being packed. */
+    private short[] pixels16 = new short[0];
+
+    /** Alpha 8 pixels of the image being packed. */
+    private byte[] pixels8 = new byte[0];
+
+    /** Luminance of the row being binarized. */
+    private int[] luminanceRow = new int[0];
+
+    /** Packed scanlines, filter byte included. */
+    private byte[] scanLines = new byte[0];
+
+    /** Raw row above the strip being filtered. */
+    private byte[] priorRow = new byte[0];
+
+    /** Raw last row of the strip being filtered. */
+    private byte[] lastRow = new byte[0];
+
+    /** Diffused error of the row being binarized. */
+    private int[] errorRow = new int[0];
+
+    /** Error diffused into the row below. */
+    private int[] nextErrorRow = new int[0];
+
+    /** Compressed image data. */
+    private byte[] compressed = new byte[0];
+
+    /** Second compressed data buffer, swapped with the first. */
+    private byte[] spare = new byte[0];
+
+    /** Filtered copy of the scanlines. */
+    private byte[] filtered = new byte[0];
+
+    /** The PNG being assembled. */
+    private byte[] output = new byte[0];
+
+    /** Number of times a buffer grew. */
+    private int resizes;
+
+    /**
+     * Retrieve the context of the calling thread
+     *
+     * @return the thread's context
+     */
+    public static EncoderContext current() {
+        return LOCAL.get();
+    }
+
+    /**
+     * End the calling thread's context and forget it; the next call to
+     * {@link #current()} on this thread creates a new one.
+     */
+    public static void releaseCurrent() {
+        LOCAL.get().end();
+        LOCAL.remove();
+    }
+
+    /**
+     * Get the deflater reset and set to the given level.
+     *
+     * @param level 0 through 9
+     * @return a deflater ready for a new stream
+     */
+    public Deflater deflater(int level) {
+        return deflater(level, Deflater.DEFAULT_STRATEGY);
+    }
+
+    /**
+     * Get the deflater reset and set to the given level and strategy.
+     *
+     * @param level 0 through 9
+     * @param strategy Deflater.DEFAULT_STRATEGY, FILTERED or HUFFMAN_ONLY
+     * @return a deflater ready for a new stream
+     */
+    public Deflater deflater(int level, int strategy) {
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        } else {
+            deflater.reset();
+            deflater.setLevel(level);
+        }
+        deflater.setStrategy(strategy);
+        return deflater;
+    }
+
+    /**
+     * Get the plain Java deflater for packed 1bpp scanlines.
+     *
+     * @return the context's SparseDeflater
+     */
+    public SparseDeflater sparseDeflater() {
+        if (sparseDeflater == null) {
+            sparseDeflater = new SparseDeflater();
+        }
+        return sparseDeflater;
+    }
+
+    /**
+     * Get a pixel buffer holding at least size ints.
+     *
+     * @param size number of ints needed
+     * @return the pixel buffer
+     */
+    public int[] pixels(int size) {
+        if (pixels.length < size) {
+            pixels = new int[size];
+            resizes++;
+        }
+        return pixels;
+    }
+
+    /**
+     * Get a pixel buffer holding at least size RGB 565 pixels.
+     *
+     * @param size number of pixels needed
+     * @return the pixel buffer
+     */
+    public short[] pixels16(int size) {
+        if (pixels16.length < size) {
+            pixels16 = new short[size];
+            resizes++;
+        }
+        return pixels16;
+    }
+
+    /**
+     * Get a pixel buffer holding at least size alpha 8 pixels.
+     *
+     * @param size number of pixels needed
+     * @return the pixel buffer
+     */
+    public byte[] pixels8(int size) {
+        if (pixels8.length < size) {
+            pixels8 = new byte[size];
+            resizes++;
+        }
+        return pixels8;
+    }
+
+    /**
+     * Get a scanline buffer holding at least size bytes.
+     *
+     * @param size number of bytes needed
+     * @return the scanline buffer
+     */
+    public byte[] scanLines(int size) {
+        if (scanLines.length < size) {
+            scanLines = new byte[size];
+            resizes++;
+        }
+        return scanLines;
+    }
+
+    /**
+     * Get the buffer holding the raw row above the strip being filtered.
+     *
+     * @param size bytes per row
+     * @return the prior row buffer
+     */
+    public byte[] priorRow(int size) {
+        if (priorRow.length < size) {
+            priorRow = new byte[size];
+            resizes++;
+        }
+        return priorRow;
+    }
+
+    /**
+     * Get the buffer receiving the raw last row of the strip being filtered.
+     *
+     * @param size bytes per row
+     * @return the last row buffer
+     */
+    public byte[] lastRow(int size) {
+        if (lastRow.length < size) {
+            lastRow = new byte[size];
+            resizes++;
+        }
+        return lastRow;
+    }
+
+    /**
+     * Make the last row of the strip just filtered the prior row of the next.
+     */
+    public void swapRows() {
+        byte[] t = priorRow;
+        priorRow = lastRow;
+        lastRow = t;
+    }
+
+    /**
+     * Get the luminance row of the row being binarized, holding at least size ints.
+     *
+     * @param size ints per row
+     * @return the luminance row
+     */
+    public int[] luminanceRow(int size) {
+        if (luminanceRow.length < size) {
+            luminanceRow = new int[size];
+            resizes++;
+        }
+        return luminanceRow;
+    }
+
+    /**
+     * Get the error row of the row being binarized, holding at least size ints.
+     *
+     * @param size ints per row
+     * @return the error row
+     */
+    public int[] errorRow(int size) {
+        if (errorRow.length < size) {
+            errorRow = new int[size];
+            resizes++;
+        }
+        return errorRow;
+    }
+
+    /**
+     * Get the error row receiving the error diffused into the row below.
+     *
+     * @param size ints per row
+     * @return the next error row
+     */
+    public int[] nextErrorRow(int size) {
+        if (nextErrorRow.length < size) {
+            nextErrorRow = new int[size];
+            resizes++;
+        }
+        return nextErrorRow;
+    }
+
+    /**
+     * Make the next error row the current one, once a row is binarized.
+     */
+    public void swapErrorRows() {
+        int[] t = errorRow;
+        errorRow = nextErrorRow;
+        nextErrorRow = t;
+    }
+
+    /**
+     * Get the buffer for compressed data, holding at least size bytes.
+     * The content of the current buffer is kept when it grows.
+     *
+     * @param size number of bytes needed
+     * @return the compressed data buffer
+     */
+    public byte[] compressed(int size) {
+        if (compressed.length < size) {
+            compressed = grow(compressed, size);
+            resizes++;
+        }
+        return compressed;
+    }
+
+    /**
+     * Get the spare buffer for compressed data, holding at least size bytes.
+     * Trial compressions go here and are swapped in with {@link #swapSpare()}.
+     * The content of the current buffer is kept when it grows.
+     *
+     * @param size number of bytes needed
+     * @return the spare buffer
+     */
+    public byte[] spare(int size) {
+        if (spare.length < size) {
+            spare = grow(spare, size);
+            resizes++;
+        }
+        return spare;
+    }
+
+    /**
+     * Make the spare buffer the compressed data buffer and the other way round.
+     */
+    public void swapSpare() {
+        byte[] t = compressed;
+        compressed = spare;
+        spare = t;
+    }
+
+    /**
+     * Get a buffer for a filtered copy of the scanlines, holding at least size bytes.
+     *
+     * @param size number of bytes needed
+     * @return the filtered scanline buffer
+     */
+    public byte[] filtered(int size) {
+        if (filtered.length < size) {
+            filtered = new byte[size];
+            resizes++;
+        }
+        return filtered;
+    }
+
+    /**
+     * Get the buffer the PNG is assembled in, holding at least size bytes.
+     * The content of the current buffer is kept when it grows.
+     *
+     * @param size number of bytes needed
+     * @return the output buffer
+     */
+    public byte[] output(int size) {
+        if (output.length < size) {
+            output = grow(output, size);
+            resizes++;
+        }
+        return output;
+    }
+
+    /**
+     * Keep a grown output buffer for the next encode.
+     *
+     * @param buffer the buffer returned by {@link #output(int)}, possibly resized since
+     */
+    public void keepOutput(byte[] buffer) {
+        if (buffer.length > output.length) {
+            output = buffer;
+        }
+    }
+
+    /**
+     * Retrieve the number of times a buffer had to grow
+     *
+     * @return buffer growths since the context was created
+     */
+    public int getResizeCount() {
+        return resizes;
+    }
+
+    /**
+     * Free the native memory of the deflater. The buffers are dropped;
+     * the context can still be used afterwards, it starts from scratch.
+     */
+    public void end() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        sparseDeflater = null;
+        pixels = new int[0];
+        pixels16 = new short[0];
+        pixels8 = new byte[0];
+        luminanceRow = new int[0];
+        scanLines = new byte[0];
+        priorRow = new byte[0];
+        lastRow = new byte[0];
+        errorRow = new int[0];
+        nextErrorRow = new int[0];
+        compressed = new byte[0];
+        spare = new byte[0];
+        filtered = new byte[0];
+        output = new byte[0];
+    }
+
+    private static byte[] grow(byte[] array, int size) {
+        // grow by half again so repeated small growths stay cheap
+        byte[] newArray = new byte[Math.max(size, array.length + (array.length >> 1))];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+}
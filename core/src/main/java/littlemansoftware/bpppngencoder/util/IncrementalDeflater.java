@@ -0,0 +1,272 @@
+package littlemansoftware.bpppngencoder.util;
+
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a sequence of frames of the same size, deflating again only
+ * the rows from the first one that changed.
+ *
+ * <p>The zlib stream is cut into segments of a fixed number of rows,
+ * each ending on a full flush. A full flush leaves the stream byte
+ * aligned and drops the history, so no segment refers back into the one
+ * before it and the compressed bytes of a segment depend on its rows
+ * alone. The raw rows, the end of each segment in the stream and the
+ * Adler-32 up to it are kept; on the next frame the rows are compared a
+ * segment at a time, the stream is kept up to the first segment that
+ * differs, and only the rest is filtered and deflated, its Adler-32
+ * combined onto the kept one. Frames that change only near the bottom,
+ * such as a counter on an LCD, cost little to encode whatever the size
+ * of the display.</p>
+ *
+ * <p>Flushes cost a few bytes each, so the stream is slightly larger
+ * than a whole frame deflated at once. Full flush needs the same
+ * {@code Deflater.deflate(byte[], int, int, int)} as
+ * {@link ParallelDeflater}; where it is missing, {@link #deflate} returns
+ * -1 and the frame is to be encoded the usual way.</p>
+ */
+public class IncrementalDeflater {
+
+    /** Default rows per segment. */
+    public static final int DEFAULT_SEGMENT_ROWS = 16;
+
+    private final int segmentRows;
+
+    /** Raw deflater, created on first use. */
+    private Deflater deflater;
+
+    private final Adler32 adler32 = new Adler32();
+
+    /** Unfiltered scanlines of the last frame. */
+    private byte[] rows = new byte[0];
+
+    /** Scanline bytes of the last frame, -1 when there is none. */
+    private int length = -1;
+
+    /** Settings of the last frame; a change starts the stream over. */
+    private int stride, filter, level, strategy;
+
+    /** The zlib stream of the last frame. */
+    private byte[] stream = new byte[0];
+
+    private int streamLength;
+
+    /** End of each segment in the stream. */
+    private int[] segmentEnds = new int[0];
+
+    /** Adler-32 of the scanlines up to the end of each segment. */
+    private long[] segmentAdlers = new long[0];
+
+    /** Rows whose compressed bytes were kept by the last frame. */
+    private int reusedRows;
+
+    /**
+     * @param segmentRows Rows per segment, at least 1. Smaller segments
+     *                    keep more of a frame that changed, larger ones
+     *                    compress better.
+     */
+    public IncrementalDeflater(int segmentRows) {
+        if (segmentRows < 1) {
+            throw new IllegalArgumentException("Need at least 1 row per segment, got " + segmentRows);
+        }
+        this.segmentRows = segmentRows;
+    }
+
+    /**
+     * Retrieve the rows per segment
+     *
+     * @return rows between full flushes
+     */
+    public int getSegmentRows() {
+        return segmentRows;
+    }
+
+    /**
+     * Compress a frame into a zlib stream, keeping what it can of the
+     * last frame's stream. The scanlines are filtered in place from the
+     * first changed segment on.
+     *
+     * @param scan Unfiltered scanlines, every row starting with a FILTER_NONE type byte.
+     * @param len Number of scanline bytes.
+     * @param nRows Number of rows, at least 1.
+     * @param filter Row filter, see {@link ScanlineFilter#filterRows}.
+     * @param level Deflate level, 0 through 9.
+     * @param strategy Deflate strategy.
+     * @param ctx Supplies the buffer for the row above the first filtered row.
+     * @return the length of the stream in {@link #getStream()}, or -1 if
+     *         this runtime cannot full flush
+     */
+    public int deflate(byte[] scan, int len, int nRows, int filter, int level, int strategy,
+                       EncoderContext ctx) {
+        if (!ParallelDeflater.SUPPORTED || nRows <= 0) {
+            return -1;
+        }
+        int stride = len / nRows;
+        int segments = (nRows + segmentRows - 1) / segmentRows;
+        int first = 0;
+        if (len == length && stride == this.stride && filter == this.filter
+                && level == this.level && strategy == this.strategy) {
+            first = firstChangedSegment(scan, nRows, stride, segments);
+            if (first == segments) {
+                reusedRows = nRows;
+                return streamLength;
+            }
+        } else {
+            if (rows.length < len) {
+                rows = new byte[len];
+            }
+            if (segmentEnds.length < segments) {
+                segmentEnds = new int[segments];
+                segmentAdlers = new long[segments];
+            }
+            length = len;
+            this.stride = stride;
+            this.filter = filter;
+            this.level = level;
+            this.strategy = strategy;
+        }
+
+        reusedRows = first * segmentRows;
+        int start = reusedRows * stride;
+        System.arraycopy(scan, start, rows, start, len - start);
+        if (filter != ScanlineFilter.NONE) {
+            // the row above the first deflated row is still raw in the kept rows
+            byte[] prior = null;
+            if (start > 0) {
+                prior = ctx.priorRow(stride - 1);
+                System.arraycopy(rows, start - stride + 1, prior, 0, stride - 1);
+            }
+            ScanlineFilter.filterRows(scan, start, nRows - reusedRows, stride - 1, filter, prior, null);
+        }
+
+        int pos;
+        long adler;
+        if (first > 0) {
+            pos = segmentEnds[first - 1];
+            adler = segmentAdlers[first - 1];
+        } else {
+            ensureCapacity(2);
+            stream[0] = 0x78;
+            stream[1] = (byte) ParallelDeflater.zlibFlags(level);
+            pos = 2;
+            adler = 1;
+        }
+
+        Deflater d = deflater(level, strategy);
+        for (int s = first; s < segments; s++) {
+            int from = s * segmentRows * stride;
+            int to = Math.min(nRows, (s + 1) * segmentRows) * stride;
+            adler32.reset();
+            adler32.update(scan, from, to - from);
+            adler = ParallelDeflater.adler32Combine(adler, adler32.getValue(), to - from);
+            d.setInput(scan, from, to - from);
+            if (s == segments - 1) {
+                d.finish();
+                while (!d.finished()) {
+                    if (pos == stream.length) {
+                        ensureCapacity(pos + 1);
+                    }
+                    pos += d.deflate(stream, pos, stream.length - pos);
+                }
+            } else {
+                // as with a sync flush, the first call after a level change may stop short
+                int n;
+                int room;
+                do {
+                    if (pos == stream.length) {
+                        ensureCapacity(pos + 1);
+                    }
+                    room = stream.length - pos;
+                    n = d.deflate(stream, pos, room, Deflater.FULL_FLUSH);
+                    pos += n;
+                } while (n == room || !d.needsInput());
+            }
+            segmentEnds[s] = pos;
+            segmentAdlers[s] = adler;
+        }
+
+        ensureCapacity(pos + 4);
+        stream[pos++] = (byte) (adler >> 24);
+        stream[pos++] = (byte) (adler >> 16);
+        stream[pos++] = (byte) (adler >> 8);
+        stream[pos++] = (byte) adler;
+        streamLength = pos;
+        return streamLength;
+    }
+
+    /**
+     * Retrieve the zlib stream of the last frame
+     *
+     * @return the buffer, {@link #deflate} tells how much of it is the stream
+     */
+    public byte[] getStream() {
+        return stream;
+    }
+
+    /**
+     * Retrieve how many rows of the last frame were not deflated again
+     *
+     * @return rows whose compressed bytes were kept from the frame before
+     */
+    public int getReusedRows() {
+        return reusedRows;
+    }
+
+    /** Forget the last frame, the next one is deflated whole. */
+    public void reset() {
+        length = -1;
+        reusedRows = 0;
+    }
+
+    /**
+     * Free the native memory of the deflater and drop the kept frame.
+     * The deflater can still be used afterwards, it starts from scratch.
+     */
+    public void end() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        rows = new byte[0];
+        stream = new byte[0];
+        segmentEnds = new int[0];
+        segmentAdlers = new long[0];
+        reset();
+    }
+
+    /**
+     * The first segment whose rows differ from the kept frame.
+     *
+     * @return the segment, or segments if no row changed
+     */
+    private int firstChangedSegment(byte[] scan, int nRows, int stride, int segments) {
+        int segmentBytes = segmentRows * stride;
+        int end = nRows * stride;
+        for (int i = 0; i < end; i++) {
+            if (scan[i] != rows[i]) {
+                return i / segmentBytes;
+            }
+        }
+        return segments;
+    }
+
+    private Deflater deflater(int level, int strategy) {
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        } else {
+            deflater.reset();
+            deflater.setLevel(level);
+        }
+        deflater.setStrategy(strategy);
+        return deflater;
+    }
+
+    private void ensureCapacity(int size) {
+        if (stream.length < size) {
+            // grow by half again so repeated small growths stay cheap
+            byte[] newStream = new byte[Math.max(size, Math.max(1024, stream.length + (stream.length >> 1)))];
+            System.arraycopy(stream, 0, newStream, 0, stream.length);
+            stream = newStream;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package littlemansoftware.bpppngencoder.util;
+
+import java.util.Arrays;
+
+/**
+ * Map from ARGB colours to palette indices, without boxing.
+ *
+ * <p>Open addressing with linear probing over two int arrays, kept at
+ * most half full. The last colour looked up is remembered, so runs of
+ * one colour, the common case in a row of pixels, skip the table.</p>
+ */
+public class IntColorMap {
+
+    private int[] keys;
+
+    /** Index plus one, 0 marks a free slot. */
+    private int[] values;
+
+    private int mask;
+    private int size;
+
+    private int lastKey;
+    private int lastValue = -1;
+
+    /**
+     * @param expected Number of colours expected, the table grows past it.
+     */
+    public IntColorMap(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        keys = new int[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Look up a colour.
+     *
+     * @param color The ARGB colour.
+     * @return its index, or -1 if it is not in the map
+     */
+    public int get(int color) {
+        if (color == lastKey && lastValue >= 0) {
+            return lastValue;
+        }
+        int i = slot(color);
+        while (values[i] != 0) {
+            if (keys[i] == color) {
+                lastKey = color;
+                lastValue = values[i] - 1;
+                return lastValue;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Map a colour to an index, replacing any index it had.
+     *
+     * @param color The ARGB colour.
+     * @param index The index, at least 0.
+     */
+    public void put(int color, int index) {
+        if ((size + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        int i = slot(color);
+        while (values[i] != 0) {
+            if (keys[i] == color) {
+                values[i] = index + 1;
+                lastValue = -1;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = color;
+        values[i] = index + 1;
+        size++;
+    }
+
+    /**
+     * Retrieve the number of colours
+     *
+     * @return colours in the map
+     */
+    public int size() {
+        return size;
+    }
+
+    /** Remove all colours, keeping the table. */
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(values, 0);
+        }
+        size = 0;
+        lastValue = -1;
+    }
+
+    private int slot(int color) {
+        // spread the bits, neighbouring colours differ in the low bits only
+        int h = color * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != 0) {
+                int j = slot(oldKeys[i]);
+                while (values[j] != 0) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
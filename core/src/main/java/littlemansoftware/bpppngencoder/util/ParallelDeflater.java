@@ -0,0 +1,262 @@
+package littlemansoftware.bpppngencoder.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates large scanline buffers on several threads, pigz style.
+ *
+ * <p>The data is cut into bands. Each band is compressed as raw deflate
+ * data with the 32K bytes before it as preset dictionary, so matches may
+ * still reach back into the previous band. Every band but the last ends
+ * on a byte-aligned sync flush, which lets the bands be concatenated
+ * behind a single zlib header. The Adler-32 values of the bands are
+ * combined into the checksum of the whole stream, so the result is one
+ * ordinary zlib stream.</p>
+ *
+ * <p>Sync flush needs {@code Deflater.deflate(byte[], int, int, int)}, which
+ * older Android releases lack; {@link #SUPPORTED} tells whether it is there.</p>
+ */
+public final class ParallelDeflater {
+
+    /** Whether this runtime can sync flush a Deflater. */
+    public static final boolean SUPPORTED = probe();
+
+    /** Default band size in bytes of scanlines. */
+    public static final int DEFAULT_BAND_SIZE = 128 * 1024;
+
+    /** Deflate window, the most history a band can refer back to. */
+    private static final int WINDOW = 32 * 1024;
+
+    private static final int ADLER_BASE = 65521;
+
+    /** Lazily created pool shared by all encoders. */
+    private static ExecutorService commonExecutor;
+
+    private ParallelDeflater() {
+    }
+
+    /**
+     * A pool of daemon threads, one per processor, shared by all encoders
+     * that do not supply their own executor.
+     *
+     * @return the shared executor
+     */
+    public static synchronized ExecutorService commonExecutor() {
+        if (commonExecutor == null) {
+            commonExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                        private int count;
+
+                        @Override
+                        public synchronized Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "BppPngEncoder-deflate-" + (++count));
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return commonExecutor;
+    }
+
+    /**
+     * Compress data into a zlib stream using several threads. The stream
+     * is left at the start of {@link EncoderContext#compressed(int)}.
+     *
+     * @param executor Runs the band tasks.
+     * @param data The bytes to compress.
+     * @param off Where they start.
+     * @param len How many there are.
+     * @param bandLength Bytes per band, best a whole number of scanlines.
+     * @param level Deflate level, 0 through 9.
+     * @param strategy Deflate strategy.
+     * @param ctx The context receiving the stream.
+     * @return the length of the stream, or -1 if the data is too small to
+     *         split, sync flush is not supported or a band failed; the
+     *         caller should then deflate serially
+     */
+    public static int deflate(ExecutorService executor, byte[] data, int off, int len, int bandLength,
+                              int level, int strategy, EncoderContext ctx) {
+        if (!SUPPORTED || bandLength <= 0 || len < 2 * bandLength) {
+            return -1;
+        }
+
+        List<Future<Band>> futures = new ArrayList<Future<Band>>();
+        for (int start = off; start < off + len; start += bandLength) {
+            int n = Math.min(bandLength, off + len - start);
+            int dictStart = Math.max(off, start - WINDOW);
+            futures.add(executor.submit(new BandTask(data, dictStart, start, n,
+                    start + n == off + len, level, strategy)));
+        }
+
+        try {
+            List<Band> bands = new ArrayList<Band>(futures.size());
+            int total = 2 + 4;
+            for (Future<Band> future : futures) {
+                Band band = future.get();
+                bands.add(band);
+                total += band.length;
+            }
+
+            byte[] out = ctx.compressed(total);
+            out[0] = 0x78;
+            out[1] = (byte) zlibFlags(level);
+            int pos = 2;
+            long adler = 1;
+            for (Band band : bands) {
+                System.arraycopy(band.bytes, 0, out, pos, band.length);
+                pos += band.length;
+                adler = adler32Combine(adler, band.adler, band.inputLength);
+            }
+            out[pos++] = (byte) (adler >> 24);
+            out[pos++] = (byte) (adler >> 16);
+            out[pos++] = (byte) (adler >> 8);
+            out[pos++] = (byte) adler;
+            return pos;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (ExecutionException e) {
+            System.err.println(e.toString());
+            return -1;
+        } finally {
+            for (Future<Band> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * The FLG byte of a zlib header for the given level, CMF being 0x78.
+     *
+     * @param level Deflate level, 0 through 9.
+     * @return FLG with the level hint and check bits set
+     */
+    static int zlibFlags(int level) {
+        int flevel = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        int flg = flevel << 6;
+        return flg + 31 - ((0x78 * 256 + flg) % 31);
+    }
+
+    /**
+     * Adler-32 of two pieces of data joined, from their own checksums,
+     * as zlib's adler32_combine.
+     *
+     * @param adler1 Adler-32 of the first piece.
+     * @param adler2 Adler-32 of the second piece.
+     * @param len2 Length of the second piece.
+     * @return Adler-32 of the first piece followed by the second
+     */
+    public static long adler32Combine(long adler1, long adler2, long len2) {
+        long rem = len2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum2 >= (ADLER_BASE << 1)) sum2 -= (ADLER_BASE << 1);
+        if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+        return sum1 | (sum2 << 16);
+    }
+
+    private static boolean probe() {
+        try {
+            Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /** A compressed band. */
+    private static final class Band {
+        byte[] bytes;
+        int length;
+        long adler;
+        int inputLength;
+    }
+
+    /** Compresses one band as raw deflate data. */
+    private static final class BandTask implements Callable<Band> {
+        private final byte[] data;
+        private final int dictStart;
+        private final int start;
+        private final int length;
+        private final boolean last;
+        private final int level;
+        private final int strategy;
+
+        BandTask(byte[] data, int dictStart, int start, int length, boolean last, int level, int strategy) {
+            this.data = data;
+            this.dictStart = dictStart;
+            this.start = start;
+            this.length = length;
+            this.last = last;
+            this.level = level;
+            this.strategy = strategy;
+        }
+
+        @Override
+        public Band call() {
+            Band band = new Band();
+            Adler32 adler = new Adler32();
+            adler.update(data, start, length);
+            band.adler = adler.getValue();
+            band.inputLength = length;
+
+            Deflater deflater = new Deflater(level, true);
+            try {
+                deflater.setStrategy(strategy);
+                if (start > dictStart) {
+                    deflater.setDictionary(data, dictStart, start - dictStart);
+                }
+                deflater.setInput(data, start, length);
+                byte[] out = new byte[length / 4 + 64];
+                int n = 0;
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        if (n == out.length) {
+                            out = grow(out);
+                        }
+                        n += deflater.deflate(out, n, out.length - n);
+                    }
+                } else {
+                    // a sync flush is complete once it took all input and leaves room in the
+                    // buffer; with a strategy set, the first call only applies it and may stop short
+                    while (true) {
+                        if (n == out.length) {
+                            out = grow(out);
+                        }
+                        int room = out.length - n;
+                        int k = deflater.deflate(out, n, room, Deflater.SYNC_FLUSH);
+                        n += k;
+                        if (k < room && deflater.needsInput()) {
+                            break;
+                        }
+                    }
+                }
+                band.bytes = out;
+                band.length = n;
+                return band;
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private static byte[] grow(byte[] array) {
+            byte[] newArray = new byte[array.length * 2];
+            System.arraycopy(array, 0, newArray, 0, array.length);
+            return newArray;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package littlemansoftware.bpppngencoder.util;
+
+/**
+ * Where {@link PngEncoder} reads the pixels of the image to encode.
+ *
+ * <p>Rows are asked for in strips, top to bottom, so a source may render
+ * or decode them on demand rather than hold the whole image. An Android
+ * Bitmap, an ARGB array ({@link ArgbPixelSource}) or a renderer drawing
+ * rows as they are asked for can all be encoded the same way.</p>
+ */
+public interface PixelSource {
+
+    /**
+     * Retrieve the width of the image
+     *
+     * @return the width in pixels
+     */
+    int getWidth();
+
+    /**
+     * Retrieve the height of the image
+     *
+     * @return the height in pixels
+     */
+    int getHeight();
+
+    /**
+     * Copy a strip of whole rows as ARGB colours, as Bitmap.getPixels does.
+     *
+     * @param pixels The array receiving the colours.
+     * @param offset Where the first pixel of the first row goes in pixels.
+     * @param stride Distance between rows in pixels.
+     * @param startRow The first row.
+     * @param rows Number of rows.
+     */
+    void getPixels(int[] pixels, int offset, int stride, int startRow, int rows);
+}
@@ -0,0 +1,231 @@
+package littlemansoftware.bpppngencoder.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of encoded PNGs, keyed on the packed scanlines.
+ *
+ * <p>Set on an encoder with {@link PngEncoder#setCache(PngCache)}. The
+ * encoder still fetches and packs the pixels, but when an identical frame
+ * was encoded before with the same settings (level, strategy, filter,
+ * deflate engine and IDAT size) it returns the cached PNG and
+ * skips filtering, deflate and chunk writing. Lookups hash the packed rows
+ * and then compare them byte for byte, so a hash collision can never
+ * return the wrong image.</p>
+ *
+ * <p>The cache is bounded both in entries and in bytes (packed rows plus
+ * PNG of each entry); the least recently used entries are evicted first.
+ * It is safe to share between encoders on different threads.</p>
+ */
+public class PngCache {
+
+    /** Rough per-entry bookkeeping cost counted against the byte limit. */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final int maxEntries;
+    private final long maxBytes;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long savedNanos;
+
+    /**
+     * @param maxEntries most PNGs kept, at least 1
+     * @param maxBytes most bytes kept, packed rows and PNGs together
+     */
+    public PngCache(int maxEntries, long maxBytes) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * 64-bit hash of packed scanlines, four bytes at a time.
+     *
+     * @param data The scanlines.
+     * @param len How many bytes to hash from the start.
+     * @return the hash
+     */
+    public static long hash(byte[] data, int len) {
+        long h = 0x9E3779B97F4A7C15L ^ len;
+        int i = 0;
+        for (int end = len & ~3; i < end; i += 4) {
+            int word = (data[i] & 0xff) | (data[i + 1] & 0xff) << 8
+                    | (data[i + 2] & 0xff) << 16 | data[i + 3] << 24;
+            h = (h ^ (word & 0xffffffffL)) * 0xC2B2AE3D27D4EB4FL;
+            h ^= h >>> 29;
+        }
+        for (; i < len; i++) {
+            h = (h ^ (data[i] & 0xff)) * 0xC2B2AE3D27D4EB4FL;
+        }
+        h ^= h >>> 32;
+        h *= 0x165667B19E3779F9L;
+        return h ^ (h >>> 29);
+    }
+
+    /**
+     * Look up the PNG of a frame.
+     *
+     * @param packed The packed scanlines of the frame.
+     * @param len Their length.
+     * @param hash {@link #hash(byte[], int)} of them.
+     * @param width Image width.
+     * @param height Image height.
+     * @param settings Settings the PNG must have been encoded with.
+     * @param engine Deflate engine the PNG must have been encoded with, see
+     *               {@link PngEncoder#setCompressionEngine(int)}.
+     * @param idatSize Largest IDAT payload of the PNG, 0 for a single IDAT.
+     * @return the cached PNG, which must not be modified, or null
+     */
+    public synchronized byte[] get(byte[] packed, int len, long hash, int width, int height,
+                                   CompressionSettings settings, int engine, int idatSize) {
+        Entry entry = entries.get(new Key(hash, width, height, settings, engine, idatSize));
+        if (entry != null && sameBytes(entry.packed, packed, len)) {
+            hits++;
+            savedNanos += entry.encodeNanos;
+            return entry.png;
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Store the PNG of a frame.
+     *
+     * @param packed The packed scanlines of the frame, copied.
+     * @param len Their length.
+     * @param hash {@link #hash(byte[], int)} of them.
+     * @param width Image width.
+     * @param height Image height.
+     * @param settings Settings the PNG was encoded with.
+     * @param engine Deflate engine the PNG was encoded with.
+     * @param idatSize Largest IDAT payload of the PNG, 0 for a single IDAT.
+     * @param png The PNG, kept as is; the caller must not modify it afterwards.
+     * @param encodeNanos Time spent compressing and writing it, credited on each hit.
+     */
+    public synchronized void put(byte[] packed, int len, long hash, int width, int height,
+                                 CompressionSettings settings, int engine, int idatSize,
+                                 byte[] png, long encodeNanos) {
+        long size = (long) len + png.length + ENTRY_OVERHEAD;
+        if (size > maxBytes) {
+            return;
+        }
+        Entry entry = new Entry();
+        entry.packed = new byte[len];
+        System.arraycopy(packed, 0, entry.packed, 0, len);
+        entry.png = png;
+        entry.size = size;
+        entry.encodeNanos = encodeNanos;
+
+        Entry old = entries.put(new Key(hash, width, height, settings, engine, idatSize), entry);
+        if (old != null) {
+            bytes -= old.size;
+        }
+        bytes += size;
+
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            if (eldest == entry) {
+                continue;
+            }
+            it.remove();
+            bytes -= eldest.size;
+            evictions++;
+        }
+    }
+
+    /** Drop all entries; the counters are kept. */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /** @return lookups that returned a PNG */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return lookups that found nothing */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** @return entries dropped to stay within the limits */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /** @return compression and chunk writing time the hits avoided, in nanoseconds */
+    public synchronized long getSavedNanos() {
+        return savedNanos;
+    }
+
+    /** @return entries currently held */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /** @return bytes currently held */
+    public synchronized long getByteCount() {
+        return bytes;
+    }
+
+    private static boolean sameBytes(byte[] a, byte[] b, int len) {
+        if (a.length != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Entry {
+        byte[] packed;
+        byte[] png;
+        long size;
+        long encodeNanos;
+    }
+
+    private static final class Key {
+        final long hash;
+        final int width;
+        final int height;
+        final CompressionSettings settings;
+        final int engine;
+        final int idatSize;
+
+        Key(long hash, int width, int height, CompressionSettings settings, int engine, int idatSize) {
+            this.hash = hash;
+            this.width = width;
+            this.height = height;
+            this.settings = settings;
+            this.engine = engine;
+            this.idatSize = idatSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && width == other.width && height == other.height
+                    && settings.equals(other.settings) && engine == other.engine
+                    && idatSize == other.idatSize;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package littlemansoftware.bpppngencoder.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads PNGs of the kind {@link PngEncoder} writes back into packed
+ * 1bpp rows, for reading cached frames and for comparing encoded pixels
+ * with their source without an ARGB Bitmap.
+ *
+ * <p>Grey or indexed images of 1, 2, 4 or 8 bits per pixel are read,
+ * plain or Adam7 interlaced, with any of the five row filters. The rows have the
+ * layout {@link PngEncoder#setPackedImage(byte[], int, int)} takes:
+ * BitPacker.bytesPerRow(width) bytes each, a clear bit for black and a
+ * set bit for every other colour, padding bits 0. Grey 0 and palette
+ * entries of RGB 0 are black.</p>
+ *
+ * <p>The image data is inflated a row at a time straight into the
+ * output, with one Inflater and two row buffers reused between decodes.
+ * Uses no Android classes. Not thread safe; use a decoder per thread.</p>
+ */
+public class PngDecoder {
+
+    private static final int COLOR_GREY = 0;
+    private static final int COLOR_INDEXED = 3;
+
+    private static final int IHDR = readInt4(ChunkWriter.IHDR, 0);
+    private static final int PLTE = readInt4(ChunkWriter.PLTE, 0);
+    private static final int IDAT = readInt4(ChunkWriter.IDAT, 0);
+    private static final int IEND = readInt4(ChunkWriter.IEND, 0);
+
+    private final Inflater inflater = new Inflater();
+    private final CRC32 crc = new CRC32();
+
+    private boolean verifyCrc = true;
+
+    private int width, height, bitDepth, colorType;
+
+    /** Whether each grey level or palette index is white. */
+    private final boolean[] white = new boolean[256];
+
+    /** The packed bits of the pixels of each possible byte of a row. */
+    private final int[] byteBits = new int[256];
+
+    /** Current and previous row, filter byte included. */
+    private byte[] row = new byte[0], prior = new byte[0];
+
+    /** Whether the image is Adam7 interlaced. */
+    private boolean interlaced;
+
+    /** Adam7 pass being read, -1 when not interlaced. */
+    private int pass;
+
+    /** Pixels per row, rows and bytes per scanline of the pass, or of the image. */
+    private int passWidth, passRows, stride;
+
+    /** Rows of the pass read so far. */
+    private int passRow;
+
+    /**
+     * Set whether the CRC of each chunk is checked. Checking costs a
+     * pass over the data; the Adler-32 of the image data is always checked.
+     *
+     * @param verify true to check
+     */
+    public void setVerifyCrc(boolean verify) {
+        this.verifyCrc = verify;
+    }
+
+    /**
+     * Retrieve whether CRCs are checked
+     *
+     * @return true when checked
+     */
+    public boolean getVerifyCrc() {
+        return verifyCrc;
+    }
+
+    /**
+     * Decode a whole PNG.
+     *
+     * @param png The PNG bytes.
+     * @return the packed rows
+     * @throws IOException if the PNG is damaged or of a kind not read
+     */
+    public byte[] decode(byte[] png) throws IOException {
+        return decode(png, 0, png.length, null);
+    }
+
+    /**
+     * Decode a PNG into packed rows.
+     *
+     * @param png The array holding the PNG.
+     * @param offset Where the PNG starts.
+     * @param length Its length.
+     * @param dst Rows to reuse, or null; used when large enough.
+     * @return the packed rows, dst when it was used
+     * @throws IOException if the PNG is damaged or of a kind not read
+     */
+    public byte[] decode(byte[] png, int offset, int length, byte[] dst) throws IOException {
+        int end = offset + length;
+        int pos = offset;
+        for (int i = 0; i < ChunkWriter.SIGNATURE.length; i++) {
+            if (pos >= end || png[pos++] != ChunkWriter.SIGNATURE[i]) {
+                throw new IOException("Not a PNG");
+            }
+        }
+
+        width = -1;
+        boolean havePalette = false;
+        int outRowBytes = 0;
+        int rows = 0;
+        int rowsLeft = 0;
+        int fill = 0;
+        inflater.reset();
+
+        while (true) {
+            if (end - pos < 12) {
+                throw new IOException("PNG ends without IEND");
+            }
+            int chunkLength = readInt4(png, pos);
+            int type = readInt4(png, pos + 4);
+            int data = pos + 8;
+            if (chunkLength < 0 || chunkLength > end - data - 4) {
+                throw new IOException("Chunk longer than the PNG");
+            }
+            if (verifyCrc) {
+                crc.reset();
+                crc.update(png, pos + 4, chunkLength + 4);
+                if ((int) crc.getValue() != readInt4(png, data + chunkLength)) {
+                    throw new IOException("CRC mismatch in " + typeName(type));
+                }
+            }
+            pos = data + chunkLength + 4;
+
+            if (type == IHDR) {
+                readHeader(png, data, chunkLength);
+                outRowBytes = BitPacker.bytesPerRow(width);
+                int size = outRowBytes * height;
+                if (dst == null || dst.length < size) {
+                    dst = new byte[size];
+                }
+                int fullStride = ((width * bitDepth + 7) >>> 3) + 1;
+                if (row.length < fullStride) {
+                    row = new byte[fullStride];
+                    prior = new byte[fullStride];
+                }
+                if (interlaced) {
+                    // the passes set the white pixels
+                    Arrays.fill(dst, 0, size, (byte) 0);
+                    for (int p = 0; p < Adam7.PASSES; p++) {
+                        if (Adam7.passWidth(p, width) > 0) {
+                            rows += Adam7.passHeight(p, height);
+                        }
+                    }
+                    pass = -1;
+                    nextPass();
+                } else {
+                    rows = height;
+                    pass = -1;
+                    startRows(width, height);
+                }
+                rowsLeft = rows;
+                if (colorType == COLOR_GREY) {
+                    for (int i = 0; i < 256; i++) {
+                        white[i] = i != 0;
+                    }
+                    buildByteBits();
+                }
+            } else if (width < 0) {
+                throw new IOException("PNG does not start with IHDR");
+            } else if (type == PLTE) {
+                if (colorType == COLOR_INDEXED) {
+                    readPalette(png, data, chunkLength);
+                    buildByteBits();
+                }
+                havePalette = true;
+            } else if (type == IDAT) {
+                if (colorType == COLOR_INDEXED && !havePalette) {
+                    throw new IOException("Indexed PNG without PLTE");
+                }
+                inflater.setInput(png, data, chunkLength);
+                try {
+                    while (rowsLeft > 0) {
+                        int n = inflater.inflate(row, fill, stride - fill);
+                        if (n == 0) {
+                            if (inflater.needsInput() || inflater.finished()) {
+                                break;
+                            }
+                            if (inflater.needsDictionary()) {
+                                throw new IOException("Image data needs a preset dictionary");
+                            }
+                        }
+                        fill += n;
+                        if (fill == stride) {
+                            unfilter(row, prior, stride);
+                            if (pass < 0) {
+                                packRow(row, dst, passRow * outRowBytes, stride);
+                            } else {
+                                int y = Adam7.firstRow(pass) + passRow * Adam7.rowStep(pass);
+                                if (pass == Adam7.PASSES - 1) {
+                                    // whole rows, which no other pass touches
+                                    packRow(row, dst, y * outRowBytes, stride);
+                                } else {
+                                    scatterRow(row, dst, y * outRowBytes);
+                                }
+                            }
+                            byte[] t = prior;
+                            prior = row;
+                            row = t;
+                            fill = 0;
+                            passRow++;
+                            rowsLeft--;
+                            if (pass >= 0 && passRow == passRows) {
+                                nextPass();
+                            }
+                        }
+                    }
+                    // read on to the end of the stream, where the Adler-32 is checked
+                    int n = 1;
+                    while (rowsLeft == 0 && n > 0 && !inflater.finished()) {
+                        n = inflater.inflate(row, 0, row.length);
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Damaged image data: " + e.getMessage());
+                }
+            } else if (type == IEND) {
+                break;
+            } else if ((type & 0x20000000) == 0) {
+                // the case bit of the first letter marks chunks that may be skipped
+                throw new IOException("Unknown critical chunk " + typeName(type));
+            }
+        }
+
+        if (rowsLeft > 0) {
+            throw new IOException("Image data ends after row " + (rows - rowsLeft) + " of " + rows);
+        }
+        if (!inflater.finished()) {
+            // the Adler-32 is only checked at the end of the stream
+            throw new IOException("Image data ends before its Adler-32");
+        }
+        return dst;
+    }
+
+    /**
+     * Retrieve the width of the last decoded image
+     *
+     * @return width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Retrieve the height of the last decoded image
+     *
+     * @return height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Retrieve the bit depth of the last decoded image
+     *
+     * @return 1, 2, 4 or 8
+     */
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    /**
+     * Retrieve the PNG colour type of the last decoded image
+     *
+     * @return 0 for grey, 3 for indexed
+     */
+    public int getColorType() {
+        return colorType;
+    }
+
+    /** Release the inflater; the decoder cannot be used afterwards. */
+    public void end() {
+        inflater.end();
+    }
+
+    private void readHeader(byte[] png, int data, int length) throws IOException {
+        if (length != 13) {
+            throw new IOException("IHDR of " + length + " bytes");
+        }
+        width = readInt4(png, data);
+        height = readInt4(png, data + 4);
+        bitDepth = png[data + 8] & 0xff;
+        colorType = png[data + 9] & 0xff;
+        if (width <= 0 || height <= 0) {
+            throw new IOException("Image of " + width + "x" + height);
+        }
+        if (colorType != COLOR_GREY && colorType != COLOR_INDEXED) {
+            throw new IOException("Colour type " + colorType + " not read");
+        }
+        if (bitDepth != 1 && bitDepth != 2 && bitDepth != 4 && bitDepth != 8) {
+            throw new IOException("Bit depth " + bitDepth + " not read");
+        }
+        if (png[data + 10] != 0 || png[data + 11] != 0) {
+            throw new IOException("Unknown compression or filter method");
+        }
+        if (png[data + 12] != 0 && png[data + 12] != 1) {
+            throw new IOException("Unknown interlace method " + png[data + 12]);
+        }
+        interlaced = png[data + 12] == 1;
+    }
+
+    /** Move to the next pass that has pixels. */
+    private void nextPass() {
+        do {
+            pass++;
+        } while (pass < Adam7.PASSES
+                && (Adam7.passWidth(pass, width) == 0 || Adam7.passHeight(pass, height) == 0));
+        if (pass < Adam7.PASSES) {
+            startRows(Adam7.passWidth(pass, width), Adam7.passHeight(pass, height));
+        }
+    }
+
+    /** Start a run of rows, the whole image or a pass. */
+    private void startRows(int pixels, int nRows) {
+        passWidth = pixels;
+        passRows = nRows;
+        passRow = 0;
+        stride = ((pixels * bitDepth + 7) >>> 3) + 1;
+        // the row above the first one is all zeros
+        Arrays.fill(prior, 0, stride, (byte) 0);
+    }
+
+    /**
+     * Set the white pixels of a pass row in their image row.
+     */
+    private void scatterRow(byte[] src, byte[] dst, int dstPos) {
+        int mask = (1 << bitDepth) - 1;
+        int x = Adam7.firstColumn(pass);
+        int step = Adam7.columnStep(pass);
+        int bit = 0;
+        for (int i = 0; i < passWidth; i++, x += step, bit += bitDepth) {
+            int v = (src[1 + (bit >>> 3)] >> (8 - bitDepth - (bit & 7))) & mask;
+            if (white[v]) {
+                dst[dstPos + (x >> 3)] |= (byte) (0x80 >>> (x & 7));
+            }
+        }
+    }
+
+    private void readPalette(byte[] png, int data, int length) {
+        int entries = Math.min(256, length / 3);
+        for (int i = 0; i < 256; i++) {
+            // indices past the palette are an error, read them as black
+            white[i] = i < entries
+                    && (png[data + i * 3] | png[data + i * 3 + 1] | png[data + i * 3 + 2]) != 0;
+        }
+    }
+
+    /** Fill byteBits from white for the current depth. */
+    private void buildByteBits() {
+        int perByte = 8 / bitDepth;
+        int mask = (1 << bitDepth) - 1;
+        for (int b = 0; b < 256; b++) {
+            int bits = 0;
+            for (int i = perByte - 1; i >= 0; i--) {
+                bits = (bits << 1) | (white[(b >> (i * bitDepth)) & mask] ? 1 : 0);
+            }
+            byteBits[b] = bits;
+        }
+    }
+
+    /**
+     * Pack a raw row, filter byte first, into 1bpp.
+     */
+    private void packRow(byte[] src, byte[] dst, int dstPos, int stride) {
+        int outRowBytes = BitPacker.bytesPerRow(width);
+        if (bitDepth == 1 && byteBits[1] == 1 && byteBits[0x80] == 0x80) {
+            // black is 0 and white is 1 already, the common case
+            System.arraycopy(src, 1, dst, dstPos, outRowBytes);
+        } else {
+            int perByte = 8 / bitDepth;
+            int acc = 0;
+            int nBits = 0;
+            int p = dstPos;
+            for (int i = 1; i < stride; i++) {
+                acc = (acc << perByte) | byteBits[src[i] & 0xff];
+                nBits += perByte;
+                if (nBits >= 8) {
+                    nBits -= 8;
+                    dst[p++] = (byte) (acc >> nBits);
+                }
+            }
+            if (nBits > 0) {
+                dst[p] = (byte) (acc << (8 - nBits));
+            }
+        }
+        // keep the padding bits of the row at 0
+        int rest = width & 7;
+        if (rest != 0) {
+            dst[dstPos + outRowBytes - 1] &= (byte) (0xff00 >>> rest);
+        }
+    }
+
+    /**
+     * Undo the row filter in place; one byte per pixel step at every
+     * depth read here.
+     */
+    private static void unfilter(byte[] row, byte[] prior, int stride) throws IOException {
+        switch (row[0]) {
+            case ScanlineFilter.NONE:
+                break;
+            case ScanlineFilter.SUB:
+                for (int i = 2; i < stride; i++) {
+                    row[i] += row[i - 1];
+                }
+                break;
+            case ScanlineFilter.UP:
+                for (int i = 1; i < stride; i++) {
+                    row[i] += prior[i];
+                }
+                break;
+            case ScanlineFilter.AVERAGE:
+                row[1] += (byte) ((prior[1] & 0xff) >> 1);
+                for (int i = 2; i < stride; i++) {
+                    row[i] += (byte) (((row[i - 1] & 0xff) + (prior[i] & 0xff)) >> 1);
+                }
+                break;
+            case ScanlineFilter.PAETH:
+                row[1] += prior[1];
+                for (int i = 2; i < stride; i++) {
+                    row[i] += (byte) paeth(row[i - 1] & 0xff, prior[i] & 0xff, prior[i - 1] & 0xff);
+                }
+                break;
+            default:
+                throw new IOException("Unknown row filter " + row[0]);
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    private static int readInt4(byte[] b, int pos) {
+        return ((b[pos] & 0xff) << 24) | ((b[pos + 1] & 0xff) << 16)
+                | ((b[pos + 2] & 0xff) << 8) | (b[pos + 3] & 0xff);
+    }
+
+    private static String typeName(int type) {
+        return new String(new char[]{(char) ((type >> 24) & 0xff), (char) ((type >> 16) & 0xff),
+                (char) ((type >> 8) & 0xff), (char) (type & 0xff)});
+    }
+}
@@ -0,0 +1,1903 @@
+package littlemansoftware.bpppngencoder.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * PngEncoder takes a {@link PixelSource} or packed rows.
+ *
+ * <p>Plain Java, with no Android classes, so frames can be encoded on a
+ * server JVM as well; BppPngEncoder adapts it to android.graphics.Bitmap.</p>
+ *
+ * <p>This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.</p>
+ *
+ * <p>This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.</p>
+ *
+ * <p>You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * A copy of the GNU LGPL may be found at
+ * <code>http://www.gnu.org/copyleft/lesser.html</code></p>
+ *
+ * @author Jose Miguel Jimenez Villanueva
+ * @version 0.1, 2 April 2017
+ *
+ */
+
+public class PngEncoder extends Object {
+
+    /** Constants for filter (NONE) */
+    public static final int FILTER_NONE = ScanlineFilter.NONE;
+
+    /** Constants for filter (SUB) */
+    public static final int FILTER_SUB = ScanlineFilter.SUB;
+
+    /** Constants for filter (UP) */
+    public static final int FILTER_UP = ScanlineFilter.UP;
+
+    /** Constants for filter (AVERAGE) */
+    public static final int FILTER_AVERAGE = ScanlineFilter.AVERAGE;
+
+    /** Constants for filter (PAETH) */
+    public static final int FILTER_PAETH = ScanlineFilter.PAETH;
+
+    /** Constants for filter (ADAPTIVE), chosen per row */
+    public static final int FILTER_ADAPTIVE = ScanlineFilter.ADAPTIVE;
+
+    /** Constants for filter (LAST) */
+    public static final int FILTER_LAST = FILTER_ADAPTIVE;
+
+    /** Constants for engine (ZLIB), java.util.zip.Deflater */
+    public static final int ENGINE_ZLIB = 0;
+
+    /** Constants for engine (SPARSE), see {@link SparseDeflater} */
+    public static final int ENGINE_SPARSE = 1;
+
+    /** Deflate levels tried by the best size search, with their strategies. */
+    private static final int[][] SEARCH_PASSES = {
+            {9, Deflater.DEFAULT_STRATEGY},
+            {9, Deflater.FILTERED},
+            {9, Deflater.HUFFMAN_ONLY},
+            {6, Deflater.DEFAULT_STRATEGY},
+            {6, Deflater.FILTERED},
+            {3, Deflater.DEFAULT_STRATEGY},
+            {1, Deflater.DEFAULT_STRATEGY},
+    };
+
+    /** Row filters tried in each pass of the best size search, likeliest first. */
+    private static final int[] SEARCH_FILTERS = {
+            ScanlineFilter.NONE, ScanlineFilter.ADAPTIVE, ScanlineFilter.SUB,
+            ScanlineFilter.UP, ScanlineFilter.PAETH, ScanlineFilter.AVERAGE,
+    };
+
+    /** Pixels fetched per strip when streaming, 32K bytes of ARGB ints. */
+    public static final int DEFAULT_STRIP_PIXELS = 8192;
+
+    /** Maximum payload of an IDAT chunk when streaming and no size was set. */
+    public static final int DEFAULT_IDAT_SIZE = 8192;
+
+    /** PNG signature. */
+    protected static final byte PNG_SIGNATURE[] = {-119, 80, 78, 71, 13, 10, 26, 10};
+
+    /** IHDR tag. */
+    protected static final byte IHDR[] = {73, 72, 68, 82};
+
+    /** IDAT tag. */
+    protected static final byte IDAT[] = {73, 68, 65, 84};
+
+    /** IEND tag. */
+    protected static final byte IEND[] = {73, 69, 78, 68};
+
+    /** The two colours of a 1bpp image, black for 0 and white for 1. */
+    static final int[] PEBBLE_PALETTE = {0xFF000000, 0xFFFFFFFF};
+
+    /** The png bytes. */
+    protected byte[] pngBytes;
+
+    /** Where the pixels of the image are read. */
+    protected PixelSource source;
+
+    /** The image as packed rows, used instead of a pixel source. */
+    protected byte[] packedImage;
+
+    /** The size of the packed image. */
+    protected int packedWidth, packedHeight;
+
+    /** The width. */
+    protected int width, height;
+
+    /** The byte position. */
+    protected int bytePos, maxPos;
+
+    /** CRC. */
+    protected CRC32 crc = new CRC32();
+
+    /** The CRC value. */
+    protected long crcValue;
+
+    /** The filter type. */
+    protected int filter;
+
+    /** The bytes-per-pixel. */
+    //protected int bytesPerPixel;
+
+    /** The compression level. */
+    protected int compressionLevel;
+
+    /** The deflate strategy. */
+    protected int compressionStrategy = Deflater.DEFAULT_STRATEGY;
+
+    /** The deflate engine. */
+    protected int compressionEngine = ENGINE_ZLIB;
+
+    /** The combination that won the last best size search. */
+    protected CompressionSettings bestSettings;
+
+    /** Number of combinations tried by the last best size search. */
+    protected int searchTrials;
+
+    /** Rows fetched per strip when streaming, 0 for automatic. */
+    protected int stripRows;
+
+    /** Maximum payload of an IDAT chunk, 0 when not set. */
+    protected int idatSize;
+
+    /** Runs parallel deflate bands, null to deflate on the calling thread. */
+    protected ExecutorService parallelExecutor;
+
+    /** Bytes of scanlines per parallel deflate band. */
+    protected int parallelBandSize = ParallelDeflater.DEFAULT_BAND_SIZE;
+
+    /** Reusable buffers and deflater, null to use the thread's own. */
+    protected EncoderContext context;
+
+    /** Turns colours into black and white, null for exact black only. */
+    protected Binarizer binarizer;
+
+    /** Cache of encoded frames, null to encode every frame. */
+    protected PngCache cache;
+
+    /** Keeps the compressed rows of the last frame, null to deflate every frame whole. */
+    protected IncrementalDeflater incremental;
+
+    /** Receives the metrics of each encode, null for none. */
+    protected EncodeListener encodeListener;
+
+    /** Metrics of the encode in progress, kept up to date only with a listener. */
+    protected final EncodeMetrics metrics = new EncodeMetrics();
+
+    /** Context buffer growths when the encode started. */
+    private int startResizes;
+
+    /** Bits per pixel: 1 for black and white, 2, 4 or 8 for a palette of the image's colours. */
+    protected int bitDepth = 1;
+
+    /** Colours of the palette, in order of first use. */
+    protected int[] paletteColors = new int[256];
+
+    /** Number of colours in the palette. */
+    protected int paletteSize;
+
+    /** Colours that did not fit in the palette and were mapped to the nearest entry. */
+    protected int paletteOverflow;
+
+    /** Palette index of every colour seen. */
+    private IntColorMap colorMap = new IntColorMap(256);
+
+    /** Writes the chunks of the encode in progress. */
+    protected final ChunkWriter chunks = new ChunkWriter(0);
+
+    /** Resolution written as a pHYs chunk, 0 for none. */
+    protected int dpi;
+
+    /** Whether the image data is written in the seven Adam7 passes. */
+    protected boolean interlaced;
+
+    /** End of each Adam7 pass in the interlaced scanlines. */
+    private final int[] passEnds = new int[Adam7.PASSES];
+
+    /** Time written as a tIME chunk, -1 for none. */
+    protected long modificationTime = -1;
+
+    /** Text written as tEXt or zTXt chunks. */
+    private final List<TextEntry> texts = new ArrayList<TextEntry>();
+
+
+
+    /**
+     * Set where the pixels of the image to be encoded are read
+     *
+     * @param source The pixels, null for no image.
+     */
+    public void setPixelSource(PixelSource source) {
+        this.source = source;
+        this.packedImage = null;
+        pngBytes = null;
+    }
+
+    /**
+     * Retrieve where the pixels of the image are read
+     *
+     * @return the pixel source, null if there is none
+     */
+    public PixelSource getPixelSource() {
+        return source;
+    }
+
+    /**
+     * Set an image that is already packed, e.g. by TextRasterizer.
+     * Rows are BitPacker.bytesPerRow(width) bytes each, leftmost pixel in
+     * the most significant bit; a set bit is white, a clear bit black.
+     * The array is read at each encode, not copied.
+     *
+     * @param rows The packed rows, top row first.
+     * @param width Image width in pixels.
+     * @param height Image height in pixels.
+     */
+    public void setPackedImage(byte[] rows, int width, int height) {
+        if (rows.length < BitPacker.bytesPerRow(width) * height) {
+            throw new IllegalArgumentException("Need " + BitPacker.bytesPerRow(width) * height
+                    + " bytes for " + width + "x" + height + ", got " + rows.length);
+        }
+        this.source = null;
+        this.packedImage = rows;
+        this.packedWidth = width;
+        this.packedHeight = height;
+        pngBytes = null;
+    }
+
+    /**
+     * Creates an array of bytes that is the PNG equivalent of the current image, specifying
+     * whether to encode alpha or not.
+     *
+     * @return an array of bytes, or null if there was a problem
+     */
+    public byte[] pngEncode() {
+        if (!loadImageSize()) {
+            return null;
+        }
+
+        // Compress image data
+        // 1bpp
+        EncoderContext ctx = activeContext();
+        beginMetrics(ctx);
+        // the cache key does not cover the ancillary chunks or the interlace
+        if (cache == null || imageDepth() != 1 || hasAncillaryChunks() || interlaced || incremental != null) {
+            int nCompressed = deflateImageData(ctx);
+            return endMetrics(ctx, writePng(ctx, nCompressed));
+        }
+
+        // the packed rows identify the frame, look them up before filtering and deflate
+        int scanPos = packImageData(ctx);
+        byte[] scanLines = ctx.scanLines(scanPos);
+        long hash = PngCache.hash(scanLines, scanPos);
+        CompressionSettings settings = getCompressionSettings();
+        byte[] cached = cache.get(scanLines, scanPos, hash, width, height, settings, compressionEngine, idatSize);
+        if (cached != null) {
+            // hand out a copy, the cached bytes are shared
+            long t = now();
+            pngBytes = resizeByteArray(cached, cached.length);
+            metrics.trimNanos += now() - t;
+            metrics.cacheHit = true;
+            return endMetrics(ctx, pngBytes);
+        }
+
+        long start = System.nanoTime();
+        // filtering works in place, keep the raw rows for the cache entry
+        byte[] raw = ctx.filtered(scanPos);
+        System.arraycopy(scanLines, 0, raw, 0, scanPos);
+        int nCompressed = deflateScanLines(ctx, scanPos);
+        byte[] png = writePng(ctx, nCompressed);
+        cache.put(raw, scanPos, hash, width, height, settings, compressionEngine, idatSize,
+                resizeByteArray(png, png.length), System.nanoTime() - start);
+        return endMetrics(ctx, png);
+    }
+
+    /**
+     * Encode an image without sharing any state with other calls; safe
+     * to use from several threads at once. Buffers come from the calling
+     * thread's {@link EncoderContext#current()}.
+     *
+     * @param source The pixels of the image to encode.
+     * @param settings Level, strategy and filter to use.
+     * @return an array of bytes, or null if there was a problem
+     */
+    public static byte[] encode(PixelSource source, CompressionSettings settings) {
+        PngEncoder encoder = new PngEncoder();
+        encoder.setCompressionSettings(settings);
+        encoder.setPixelSource(source);
+        return encoder.pngEncode();
+    }
+
+    /**
+     * Creates the smallest PNG this encoder can make of the current image
+     * within a time budget. The pixels are fetched and packed once; then
+     * combinations of deflate level, deflate strategy and row filter are
+     * tried, likeliest first, until all have been tried or the budget is
+     * spent. At least one combination is always tried. The winner is
+     * reported by {@link #getBestSettings()}; the encoder's own settings
+     * are left as they were.
+     *
+     * @param timeBudgetMillis wall-clock time to spend searching
+     * @return an array of bytes, or null if there was a problem
+     */
+    public byte[] pngEncodeSmallest(long timeBudgetMillis) {
+        if (!loadImageSize()) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        long budget = timeBudgetMillis * 1000000L;
+
+        EncoderContext ctx = activeContext();
+        beginMetrics(ctx);
+        int scanPos = packImageData(ctx);
+        byte[] raw = ctx.scanLines(scanPos);
+        int rowBytes = height > 0 ? scanPos / height - 1 : 0;
+
+        int bestLength = -1;
+        bestSettings = null;
+        searchTrials = 0;
+        search:
+        for (int[] pass : SEARCH_PASSES) {
+            for (int rowFilter : SEARCH_FILTERS) {
+                if (searchTrials > 0 && System.nanoTime() - start >= budget) {
+                    break search;
+                }
+                byte[] scanLines = raw;
+                int length = scanPos;
+                long t = now();
+                if (interlaced) {
+                    scanLines = ctx.filtered(Adam7.size(width, height, imageDepth()));
+                    length = Adam7.interlace(raw, 1, rowBytes + 1, width, height, imageDepth(), rowFilter,
+                            scanLines, 0, passEnds);
+                } else if (rowFilter != FILTER_NONE && height > 0) {
+                    scanLines = ctx.filtered(scanPos);
+                    System.arraycopy(raw, 0, scanLines, 0, scanPos);
+                    ScanlineFilter.filterRows(scanLines, 0, height, rowBytes, rowFilter, null, null);
+                }
+                long t2 = now();
+                metrics.filterNanos += t2 - t;
+                int n = deflateToSpare(ctx, scanLines, length, pass[0], pass[1]);
+                metrics.deflateNanos += now() - t2;
+                searchTrials++;
+                if (bestLength < 0 || n < bestLength) {
+                    // keep the winner in the compressed buffer, the next trial reuses the spare
+                    ctx.swapSpare();
+                    bestLength = n;
+                    bestSettings = new CompressionSettings(pass[0], pass[1], rowFilter);
+                }
+            }
+        }
+        metrics.rawBytes = scanPos;
+        metrics.compressedBytes = bestLength;
+        return endMetrics(ctx, writePng(ctx, bestLength));
+    }
+
+    /**
+     * Write the signature, IHDR, PLTE and ancillary chunks into pngBytes,
+     * which is taken from the context's output buffer.
+     *
+     * @param ctx The context to work in.
+     * @return the number of bytes written
+     */
+    protected int writePngHeader(EncoderContext ctx) {
+        chunks.reset(ctx.output(64), 0, true);
+        writeHeaderChunks(ctx);
+        pngBytes = chunks.getBuffer();
+        ctx.keepOutput(pngBytes);
+        metrics.resizes += chunks.getResizeCount();
+        return chunks.length();
+    }
+
+    /**
+     * Assemble the PNG around compressed image data.
+     *
+     * @param ctx The context holding the compressed data.
+     * @param nCompressed Length of the compressed data.
+     * @return the PNG bytes
+     */
+    protected byte[] writePng(EncoderContext ctx, int nCompressed) {
+        long t = now();
+        // sized for the whole PNG, the writer never has to grow
+        chunks.reset(ctx.output(pngBound(nCompressed)), 0, true);
+        writeHeaderChunks(ctx);
+        writeImageData(ctx.compressed(nCompressed), nCompressed);
+        writeEnd();
+
+        // the working buffer may have grown, hand it back for the next frame
+        pngBytes = chunks.getBuffer();
+        ctx.keepOutput(pngBytes);
+        metrics.resizes += chunks.getResizeCount();
+        bytePos = maxPos = chunks.getPosition();
+        long t2 = now();
+        metrics.writeNanos += t2 - t;
+        pngBytes = resizeByteArray(pngBytes, maxPos);
+        metrics.trimNanos += now() - t2;
+        return pngBytes;
+    }
+
+    /**
+     * Write the chunks in front of the image data: signature, IHDR,
+     * PLTE, then pHYs, text and tIME if set.
+     */
+    private void writeHeaderChunks(EncoderContext ctx) {
+        chunks.signature();
+        writeHeader();
+        writePalette();
+        if (dpi > 0) {
+            chunks.physDpi(dpi);
+        }
+        for (TextEntry entry : texts) {
+            if (entry.compressed) {
+                // the image data is deflated before or after the header, never during
+                chunks.ztxt(entry.keyword, entry.text, ctx.deflater(9));
+            } else {
+                chunks.text(entry.keyword, entry.text);
+            }
+        }
+        if (modificationTime >= 0) {
+            chunks.time(modificationTime);
+        }
+    }
+
+    /**
+     * Encodes the current image as a PNG straight into a stream.
+     * Pixels are pulled in strips of {@link #getStripRows()} rows and
+     * deflated as they go; the compressed data is written as one or
+     * more IDAT chunks of at most {@link #getIdatSize()} bytes, so the
+     * memory used does not depend on the height of the image.
+     * The stream is not closed.
+     *
+     * @param out The stream receiving the PNG.
+     * @return the number of bytes written, or -1 if there is no image
+     * @throws IOException if the stream fails
+     */
+    public long pngEncode(OutputStream out) throws IOException {
+        if (!loadImageSize()) {
+            return -1;
+        }
+
+        /*
+         * signature, IHDR and PLTE are small, build them in pngBytes
+         */
+        EncoderContext ctx = activeContext();
+        beginMetrics(ctx);
+        int chunkSize = idatSize > 0 ? idatSize : DEFAULT_IDAT_SIZE;
+        if (interlaced) {
+            return pngEncodeInterlaced(ctx, out, chunkSize);
+        }
+
+        int nRows = stripRows > 0 ? stripRows : Math.max(1, DEFAULT_STRIP_PIXELS / Math.max(1, width));
+        nRows = Math.min(nRows, Math.max(1, height));
+        int[] pixels = packedImage == null ? ctx.pixels(width * nRows) : null;
+        if (imageDepth() > 1) {
+            // the PLTE goes before the image data, collect the colours first
+            long t = now();
+            resetPalette();
+            for (int startRow = 0; startRow < height; startRow += nRows) {
+                int rows = Math.min(nRows, height - startRow);
+                source.getPixels(pixels, 0, width, startRow, rows);
+                for (int i = 0; i < width * rows; i++) {
+                    paletteIndex(pixels[i]);
+                }
+            }
+            warnPaletteOverflow();
+            metrics.packNanos += now() - t;
+        }
+
+        long t = now();
+        int headerLength = writePngHeader(ctx);
+        out.write(pngBytes, 0, headerLength);
+        long written = headerLength;
+        pngBytes = null;
+        metrics.writeNanos += now() - t;
+
+        int rowBytes = rowBytes();
+        byte[] scanLines = ctx.scanLines((rowBytes + 1) * nRows);
+        ctx.priorRow(rowBytes);
+        ctx.lastRow(rowBytes);
+
+        // each IDAT is deflated straight into the chunk buffer behind its length and type
+        chunks.reset(ctx.compressed(chunkSize + 12), 0, false);
+        chunks.beginChunk(IDAT);
+        byte[] chunk = chunks.getBuffer();
+        int chunkFill = 0;
+
+        Deflater scrunch = ctx.deflater(compressionLevel, compressionStrategy);
+        for (int startRow = 0; startRow < height; startRow += nRows) {
+            int rows = Math.min(nRows, height - startRow);
+            int scanPos = fetchRows(ctx, pixels, startRow, rows, scanLines, 0);
+            t = now();
+            if (filter != FILTER_NONE) {
+                // the raw last row of this strip is the row above the next one
+                ScanlineFilter.filterRows(scanLines, 0, rows, rowBytes, filter,
+                        startRow == 0 ? null : ctx.priorRow(rowBytes), ctx.lastRow(rowBytes));
+                ctx.swapRows();
+            }
+            long t2 = now();
+            metrics.filterNanos += t2 - t;
+
+            // chunk writes in between are counted as writing, not deflate
+            long writeBefore = metrics.writeNanos;
+            scrunch.setInput(scanLines, 0, scanPos);
+            while (!scrunch.needsInput()) {
+                int n = scrunch.deflate(chunk, 8 + chunkFill, chunkSize - chunkFill);
+                chunks.advance(n);
+                chunkFill += n;
+                if (chunkFill == chunkSize) {
+                    written += writeChunk(out, true);
+                    chunkFill = 0;
+                }
+            }
+            metrics.deflateNanos += now() - t2 - (metrics.writeNanos - writeBefore);
+        }
+        t = now();
+        long writeBefore = metrics.writeNanos;
+        scrunch.finish();
+        while (!scrunch.finished()) {
+            int n = scrunch.deflate(chunk, 8 + chunkFill, chunkSize - chunkFill);
+            chunks.advance(n);
+            chunkFill += n;
+            if (chunkFill == chunkSize) {
+                written += writeChunk(out, true);
+                chunkFill = 0;
+            }
+        }
+        metrics.deflateNanos += now() - t - (metrics.writeNanos - writeBefore);
+        if (chunkFill > 0) {
+            written += writeChunk(out, false);
+        } else {
+            chunks.reset();
+        }
+
+        chunks.beginChunk(IEND);
+        written += writeChunk(out, false);
+        metrics.rawBytes = scrunch.getBytesRead();
+        metrics.compressedBytes = scrunch.getBytesWritten();
+        endMetrics(ctx, written);
+        return written;
+    }
+
+    /**
+     * Stream an interlaced PNG. Every pass needs rows from all over the
+     * image, so the image is packed and deflated whole, then written.
+     */
+    private long pngEncodeInterlaced(EncoderContext ctx, OutputStream out, int chunkSize) throws IOException {
+        int nCompressed = deflateImageData(ctx);
+        long t = now();
+        chunks.reset(ctx.output(pngBound(nCompressed)), 0, true);
+        writeHeaderChunks(ctx);
+        chunks.idat(ctx.compressed(nCompressed), 0, nCompressed, chunkSize);
+        writeEnd();
+        ctx.keepOutput(chunks.getBuffer());
+        metrics.resizes += chunks.getResizeCount();
+        int written = chunks.writeTo(out);
+        metrics.writeNanos += now() - t;
+        endMetrics(ctx, written);
+        return written;
+    }
+
+    /**
+     * Encodes the current image as a PNG into a buffer, e.g. a direct
+     * buffer handed to a socket or a region of a file mapped with
+     * {@link FileChannel#map}. The PNG is written at the position of the
+     * buffer, which is advanced past it. Unlike {@link #pngEncode()} no
+     * array of the PNG's exact size is made.
+     *
+     * @param dst The buffer receiving the PNG.
+     * @return the number of bytes written, or -1 if there is no image
+     * @throws BufferOverflowException if the PNG does not fit; the
+     *         position of the buffer is then left unchanged
+     */
+    public int pngEncode(ByteBuffer dst) {
+        if (!loadImageSize()) {
+            return -1;
+        }
+
+        EncoderContext ctx = activeContext();
+        beginMetrics(ctx);
+        int nCompressed = deflateImageData(ctx);
+
+        long t = now();
+        int headerLength = writePngHeader(ctx);
+        int chunkSize = idatSize > 0 ? idatSize : Math.max(1, nCompressed);
+        int nChunks = Math.max(1, (nCompressed + chunkSize - 1) / chunkSize);
+        int length = headerLength + nCompressed + nChunks * 12 + 12;
+        if (dst.remaining() < length) {
+            pngBytes = null;
+            throw new BufferOverflowException();
+        }
+        dst.put(pngBytes, 0, headerLength);
+        pngBytes = null;
+
+        byte[] compressedLines = ctx.compressed(nCompressed);
+        int done = 0;
+        do {
+            int n = Math.min(chunkSize, nCompressed - done);
+            putInt4(dst, n);
+            dst.put(IDAT);
+            dst.put(compressedLines, done, n);
+            putInt4(dst, chunks.crc(IDAT, compressedLines, done, n));
+            done += n;
+        } while (done < nCompressed);
+
+        putInt4(dst, 0);
+        dst.put(IEND);
+        putInt4(dst, chunks.crc(IEND, compressedLines, 0, 0));
+        metrics.writeNanos += now() - t;
+
+        endMetrics(ctx, length);
+        return length;
+    }
+
+    /**
+     * Encodes the current image as a PNG into a caller's array, e.g. one
+     * buffer of {@link #maxEncodedSize()} bytes reused for every frame
+     * of a fixed size display. Nothing is allocated for the output. The
+     * frame cache is not consulted.
+     *
+     * @param dst The array receiving the PNG.
+     * @param offset Where the PNG starts in dst.
+     * @return the number of bytes written, or -1 if there is no image
+     * @throws ArrayIndexOutOfBoundsException if the PNG does not fit;
+     *         dst past offset may then have been written to
+     */
+    public int encodeInto(byte[] dst, int offset) {
+        if (!loadImageSize()) {
+            return -1;
+        }
+
+        EncoderContext ctx = activeContext();
+        beginMetrics(ctx);
+        int nCompressed = deflateImageData(ctx);
+
+        long t = now();
+        chunks.reset(dst, offset, false);
+        writeHeaderChunks(ctx);
+        writeImageData(ctx.compressed(nCompressed), nCompressed);
+        writeEnd();
+        int length = chunks.length();
+        metrics.writeNanos += now() - t;
+
+        endMetrics(ctx, length);
+        return length;
+    }
+
+    /**
+     * Largest PNG the current image can be encoded to with the current
+     * settings, whatever the level, strategy and filter; see
+     * {@link #maxEncodedSize(int, int, int)}. Includes the ancillary
+     * chunks and the IDAT split.
+     *
+     * @return the size in bytes, or -1 if there is no image
+     */
+    public int maxEncodedSize() {
+        if (!loadImageSize()) {
+            return -1;
+        }
+        if (interlaced) {
+            // a sync flush after each pass but the last
+            return pngBound(deflateBound(Adam7.size(width, height, imageDepth())) + flushBound(Adam7.PASSES - 1));
+        }
+        long raw = (long) (rowBytes() + 1) * height;
+        long bound = deflateBound(raw);
+        if (parallelExecutor != null && height > 0) {
+            // each band is deflated on its own and ends on a sync flush
+            int stride = rowBytes() + 1;
+            long bandLength = Math.max(1, parallelBandSize / stride) * (long) stride;
+            bound += flushBound((raw + bandLength - 1) / bandLength);
+        }
+        if (incremental != null) {
+            // a full flush after each segment
+            int segmentRows = incremental.getSegmentRows();
+            bound += flushBound((height + segmentRows - 1) / segmentRows);
+        }
+        return pngBound(bound);
+    }
+
+    /**
+     * Most bytes the given number of sync or full flushes can add to a
+     * zlib stream: each may end a stored block, whose header is 5
+     * bytes, and adds the empty stored block marking the flush, 5 more.
+     */
+    private static long flushBound(long flushes) {
+        return flushes * (5 + 5);
+    }
+
+    /**
+     * Largest PNG an image of the given size and depth can be encoded
+     * to, not interlaced, without ancillary chunks and with the image
+     * data in one IDAT:
+     * the zlib bound of the scanlines plus signature, IHDR, a full
+     * PLTE, IDAT and IEND. Deflate never exceeds its bound, so an array
+     * of this size always holds the PNG.
+     *
+     * @param width Image width.
+     * @param height Image height.
+     * @param depth Bits per pixel, 1, 2, 4 or 8.
+     * @return the size in bytes
+     * @throws IllegalArgumentException if the bound exceeds an array
+     */
+    public static int maxEncodedSize(int width, int height, int depth) {
+        long raw = (((long) width * depth + 7) >>> 3) + 1;
+        long size = headerBound(depth) + 12 + deflateBound(raw * height);
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("PNG of " + width + "x" + height + " may not fit an array");
+        }
+        return (int) size;
+    }
+
+    /**
+     * zlib's bound for any level and strategy: the stored size plus the
+     * block and stream overheads.
+     */
+    private static long deflateBound(long n) {
+        return n + ((n + 7) >> 3) + ((n + 63) >> 6) + 5 + 6;
+    }
+
+    /**
+     * Signature, IHDR, a PLTE of every colour of the depth and IEND.
+     */
+    private static int headerBound(int depth) {
+        int entries = depth == 1 ? 2 : 1 << depth;
+        return 8 + 25 + 12 + entries * 3 + 12;
+    }
+
+    /**
+     * Largest PNG around the given amount of compressed data.
+     */
+    private int pngBound(long nCompressed) {
+        long chunkCount = idatSize > 0 ? Math.max(1, (nCompressed + idatSize - 1) / idatSize) : 1;
+        long size = headerBound(imageDepth()) + chunkCount * 12 + nCompressed;
+        if (dpi > 0) {
+            size += 21;
+        }
+        for (TextEntry entry : texts) {
+            size += 13 + entry.keyword.length()
+                    + (entry.compressed ? 1 + deflateBound(entry.text.length()) : entry.text.length());
+        }
+        if (modificationTime >= 0) {
+            size += 19;
+        }
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("PNG of " + width + "x" + height + " may not fit an array");
+        }
+        return (int) size;
+    }
+
+    /**
+     * Encodes the current image as a PNG straight into a channel.
+     *
+     * @param channel The channel receiving the PNG, it is not closed.
+     * @return the number of bytes written, or -1 if there is no image
+     * @throws IOException if the channel fails
+     * @see #pngEncode(OutputStream)
+     */
+    public long pngEncode(WritableByteChannel channel) throws IOException {
+        return pngEncode(Channels.newOutputStream(channel));
+    }
+
+    /**
+     * Close the open chunk and write it.
+     *
+     * @param out The stream to write to.
+     * @param another Whether to open another IDAT in its place.
+     * @return The number of bytes written.
+     * @throws IOException if the stream fails
+     */
+    private int writeChunk(OutputStream out, boolean another) throws IOException {
+        long t = now();
+        chunks.endChunk();
+        int n = chunks.writeTo(out);
+        if (another) {
+            chunks.beginChunk(IDAT);
+        }
+        metrics.writeNanos += now() - t;
+        return n;
+    }
+
+    /**
+     * Set the context holding the buffers and deflater reused between
+     * encodes. By default each thread uses its own {@link EncoderContext#current()}.
+     *
+     * @param context the context, or null for the thread's own
+     */
+    public void setContext(EncoderContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Retrieve the context set with {@link #setContext(EncoderContext)}
+     *
+     * @return the context, or null when the thread's own is used
+     */
+    public EncoderContext getContext() {
+        return context;
+    }
+
+    /**
+     * The context used by the encode in progress.
+     *
+     * @return the explicit context or the thread's own
+     */
+    protected EncoderContext activeContext() {
+        return context != null ? context : EncoderContext.current();
+    }
+
+    /**
+     * Set how colours become black or white. By default only opaque
+     * black is black; a {@link Binarizer} can threshold on luminance or
+     * dither instead, for photos, logos or anti-aliased text.
+     *
+     * @param binarizer the binarizer, or null for exact black only
+     */
+    public void setBinarizer(Binarizer binarizer) {
+        this.binarizer = binarizer;
+    }
+
+    /**
+     * Retrieve the binarizer
+     *
+     * @return the binarizer, or null when only exact black is black
+     */
+    public Binarizer getBinarizer() {
+        return binarizer;
+    }
+
+    /**
+     * Set a listener told where the time and bytes of each encode went.
+     * Without one the stages are not timed at all.
+     *
+     * @param listener the listener, or null for none
+     */
+    public void setEncodeListener(EncodeListener listener) {
+        this.encodeListener = listener;
+    }
+
+    /**
+     * Retrieve the encode listener
+     *
+     * @return the listener, or null when there is none
+     */
+    public EncodeListener getEncodeListener() {
+        return encodeListener;
+    }
+
+    /**
+     * Set a cache of encoded frames consulted by {@link #pngEncode()}.
+     * A frame whose packed pixels and settings match an earlier one is
+     * returned from the cache without filtering or deflate. A cache may
+     * be shared by several encoders.
+     *
+     * @param cache the cache, or null to encode every frame
+     */
+    public void setCache(PngCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Retrieve the cache of encoded frames
+     *
+     * @return the cache, or null when there is none
+     */
+    public PngCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Deflate only what changed since the last frame. The compressed
+     * data is cut every segmentRows rows; a frame keeps the compressed
+     * bytes of the segments above the first row that changed, and only
+     * the rest is deflated again. Used by {@link #pngEncode()},
+     * {@link #pngEncode(ByteBuffer)} and {@link #encodeInto(byte[], int)}
+     * where {@link ParallelDeflater#SUPPORTED}; not for interlaced
+     * images. Replaces the frame cache and parallel deflate.
+     *
+     * @param segmentRows Rows per segment, e.g.
+     *                    {@link IncrementalDeflater#DEFAULT_SEGMENT_ROWS};
+     *                    0 to deflate every frame whole
+     */
+    public void setIncrementalRows(int segmentRows) {
+        if (segmentRows < 0) {
+            return;
+        }
+        if (incremental != null) {
+            if (incremental.getSegmentRows() == segmentRows) {
+                return;
+            }
+            incremental.end();
+        }
+        incremental = segmentRows > 0 ? new IncrementalDeflater(segmentRows) : null;
+    }
+
+    /**
+     * Retrieve the rows per segment of incremental encoding
+     *
+     * @return rows per segment, or 0 when every frame is deflated whole
+     */
+    public int getIncrementalRows() {
+        return incremental == null ? 0 : incremental.getSegmentRows();
+    }
+
+    /**
+     * Deflate large images on several threads. The scanlines are split
+     * into bands of whole rows, compressed in parallel and joined into a
+     * single zlib stream, so the output is still one standard PNG. Only
+     * images of at least two bands are split, and only where
+     * {@link ParallelDeflater#SUPPORTED}; streaming encodes stay serial.
+     *
+     * @param executor runs the bands, e.g. {@link ParallelDeflater#commonExecutor()};
+     *                 null to deflate on the calling thread
+     */
+    public void setParallelExecutor(ExecutorService executor) {
+        this.parallelExecutor = executor;
+    }
+
+    /**
+     * Retrieve the executor used for parallel deflate
+     *
+     * @return the executor, or null when deflating serially
+     */
+    public ExecutorService getParallelExecutor() {
+        return parallelExecutor;
+    }
+
+    /**
+     * Set the amount of scanline data compressed per parallel band.
+     * Smaller bands spread better over the cores, larger ones compress
+     * slightly better.
+     *
+     * @param size bytes per band, at least 1
+     */
+    public void setParallelBandSize(int size) {
+        if (size > 0) {
+            this.parallelBandSize = size;
+        }
+    }
+
+    /**
+     * Retrieve the parallel band size
+     *
+     * @return bytes per band
+     */
+    public int getParallelBandSize() {
+        return parallelBandSize;
+    }
+
+    /**
+     * Set the number of rows fetched and packed at a time when streaming.
+     *
+     * @param rows rows per strip, 0 to fit {@link #DEFAULT_STRIP_PIXELS} pixels
+     */
+    public void setStripRows(int rows) {
+        if (rows >= 0) {
+            this.stripRows = rows;
+        }
+    }
+
+    /**
+     * Retrieve the rows per strip used when streaming
+     *
+     * @return rows per strip, 0 when automatic
+     */
+    public int getStripRows() {
+        return stripRows;
+    }
+
+    /**
+     * Set the maximum payload of each IDAT chunk. When no size is set
+     * the image data is written as one chunk, or in chunks of
+     * {@link #DEFAULT_IDAT_SIZE} bytes when streaming.
+     *
+     * @param size bytes per IDAT chunk, 0 for the default
+     */
+    public void setIdatSize(int size) {
+        if (size >= 0) {
+            this.idatSize = size;
+        }
+    }
+
+    /**
+     * Retrieve the maximum IDAT payload
+     *
+     * @return bytes per IDAT chunk, 0 when not set
+     */
+    public int getIdatSize() {
+        return idatSize;
+    }
+
+    /**
+     * Set whether the image is written interlaced, in the seven passes
+     * of Adam7. The first pass, every 8th pixel of every 8th row, comes
+     * first in the image data, so a decoder reading a slow link can show
+     * a coarse picture early. Each pass ends on a deflate sync flush
+     * where {@link ParallelDeflater#SUPPORTED}. The output is somewhat
+     * larger, and streaming keeps the whole packed image in memory.
+     *
+     * @param interlaced true for Adam7, false for rows top to bottom
+     */
+    public void setInterlaced(boolean interlaced) {
+        this.interlaced = interlaced;
+    }
+
+    /**
+     * Retrieve whether the image is written interlaced
+     *
+     * @return true for Adam7
+     */
+    public boolean isInterlaced() {
+        return interlaced;
+    }
+
+    /**
+     * Set the resolution written as a pHYs chunk, e.g. for printing.
+     *
+     * @param dpi pixels per inch, 0 for no pHYs chunk
+     */
+    public void setDpi(int dpi) {
+        if (dpi >= 0) {
+            this.dpi = dpi;
+        }
+    }
+
+    /**
+     * Retrieve the resolution written as a pHYs chunk
+     *
+     * @return pixels per inch, 0 when there is none
+     */
+    public int getDpi() {
+        return dpi;
+    }
+
+    /**
+     * Set the time of last modification written as a tIME chunk.
+     *
+     * @param millis milliseconds since the epoch, -1 for no tIME chunk
+     */
+    public void setModificationTime(long millis) {
+        this.modificationTime = millis < 0 ? -1 : millis;
+    }
+
+    /**
+     * Retrieve the time written as a tIME chunk
+     *
+     * @return milliseconds since the epoch, -1 when there is none
+     */
+    public long getModificationTime() {
+        return modificationTime;
+    }
+
+    /**
+     * Add text written as a tEXt chunk with every encode.
+     *
+     * @param keyword 1 to 79 characters, e.g. "Title" or "Software".
+     * @param text The text, Latin-1.
+     * @throws IllegalArgumentException if the keyword is empty or too long
+     */
+    public void addText(String keyword, String text) {
+        ChunkWriter.checkKeyword(keyword);
+        texts.add(new TextEntry(keyword, text, false));
+    }
+
+    /**
+     * Add text written as a compressed zTXt chunk with every encode,
+     * for longer texts.
+     *
+     * @param keyword 1 to 79 characters.
+     * @param text The text, Latin-1.
+     * @throws IllegalArgumentException if the keyword is empty or too long
+     */
+    public void addCompressedText(String keyword, String text) {
+        ChunkWriter.checkKeyword(keyword);
+        texts.add(new TextEntry(keyword, text, true));
+    }
+
+    /**
+     * Remove the text added with {@link #addText(String, String)} and
+     * {@link #addCompressedText(String, String)}.
+     */
+    public void clearText() {
+        texts.clear();
+    }
+
+    /**
+     * Whether any pHYs, text or tIME chunk is written.
+     *
+     * @return true when there are ancillary chunks
+     */
+    protected boolean hasAncillaryChunks() {
+        return dpi > 0 || modificationTime >= 0 || !texts.isEmpty();
+    }
+
+    /**
+     * Set the bits per pixel. At 1 black is black and every other colour
+     * white (or as the binarizer decides). At 2, 4 or 8 the image is
+     * written with a palette of its own colours, up to 4, 16 or 256 of
+     * them in order of first use; further colours take the nearest one.
+     * A packed image is always written at 1.
+     *
+     * @param depth 1, 2, 4 or 8
+     */
+    public void setBitDepth(int depth) {
+        if (depth == 1 || depth == 2 || depth == 4 || depth == 8) {
+            this.bitDepth = depth;
+        }
+    }
+
+    /**
+     * Retrieve the bits per pixel
+     *
+     * @return 1, 2, 4 or 8
+     */
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    /**
+     * Retrieve the number of colours in the palette of the last encode
+     *
+     * @return palette entries, 0 at 1 bit per pixel
+     */
+    public int getPaletteSize() {
+        return paletteSize;
+    }
+
+    /**
+     * Set the filter to use
+     *
+     * @param whichFilter from constant list
+     */
+    public void setFilter(int whichFilter) {
+        this.filter = FILTER_NONE;
+        if (whichFilter >= FILTER_NONE && whichFilter <= FILTER_LAST) {
+            this.filter = whichFilter;
+        }
+    }
+
+    /**
+     * Retrieve filtering scheme
+     *
+     * @return int (see constant list)
+     */
+    public int getFilter() {
+        return filter;
+    }
+
+    /**
+     * Set the compression level to use
+     *
+     * @param level 0 through 9
+     */
+    public void setCompressionLevel(int level) {
+        if (level >= 0 && level <= 9) {
+            this.compressionLevel = level;
+        }
+    }
+
+    /**
+     * Retrieve compression level
+     *
+     * @return int in range 0-9
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Set the deflate strategy to use
+     *
+     * @param strategy Deflater.DEFAULT_STRATEGY, Deflater.FILTERED or Deflater.HUFFMAN_ONLY
+     */
+    public void setCompressionStrategy(int strategy) {
+        if (strategy == Deflater.DEFAULT_STRATEGY || strategy == Deflater.FILTERED
+                || strategy == Deflater.HUFFMAN_ONLY) {
+            this.compressionStrategy = strategy;
+        }
+    }
+
+    /**
+     * Retrieve deflate strategy
+     *
+     * @return Deflater.DEFAULT_STRATEGY, Deflater.FILTERED or Deflater.HUFFMAN_ONLY
+     */
+    public int getCompressionStrategy() {
+        return compressionStrategy;
+    }
+
+    /**
+     * Set the deflate engine to use. {@link #ENGINE_SPARSE} compresses
+     * text frames about as well as level 9 in a fraction of the time;
+     * level and strategy do not apply to it. It is used by the in-memory
+     * encodes of images that are not interlaced; streaming, incremental
+     * and interlaced encodes use zlib.
+     *
+     * @param engine ENGINE_ZLIB or ENGINE_SPARSE
+     */
+    public void setCompressionEngine(int engine) {
+        if (engine == ENGINE_ZLIB || engine == ENGINE_SPARSE) {
+            this.compressionEngine = engine;
+        }
+    }
+
+    /**
+     * Retrieve deflate engine
+     *
+     * @return ENGINE_ZLIB or ENGINE_SPARSE
+     */
+    public int getCompressionEngine() {
+        return compressionEngine;
+    }
+
+    /**
+     * Set level, strategy and filter at once, e.g. to pin the winner of
+     * {@link #pngEncodeSmallest(long)} for similar frames.
+     *
+     * @param settings the combination to use
+     */
+    public void setCompressionSettings(CompressionSettings settings) {
+        setCompressionLevel(settings.getLevel());
+        setCompressionStrategy(settings.getStrategy());
+        setFilter(settings.getFilter());
+    }
+
+    /**
+     * Retrieve level, strategy and filter
+     *
+     * @return the current combination
+     */
+    public CompressionSettings getCompressionSettings() {
+        return new CompressionSettings(compressionLevel, compressionStrategy, filter);
+    }
+
+    /**
+     * Retrieve the combination that gave the smallest output in the last
+     * call to {@link #pngEncodeSmallest(long)}
+     *
+     * @return the winning combination, or null if there was no search yet
+     */
+    public CompressionSettings getBestSettings() {
+        return bestSettings;
+    }
+
+    /**
+     * Retrieve the number of combinations the last search tried
+     *
+     * @return combinations tried by {@link #pngEncodeSmallest(long)}
+     */
+    public int getSearchTrials() {
+        return searchTrials;
+    }
+
+    /**
+     * Increase or decrease the length of a byte array.
+     *
+     * @param array The original array.
+     * @param newLength The length you wish the new array to have.
+     * @return Array of newly desired length. If shorter than the
+     *         original, the trailing elements are truncated.
+     */
+    protected byte[] resizeByteArray(byte[] array, int newLength) {
+        byte[]  newArray = new byte[newLength];
+        int     oldLength = array.length;
+
+        System.arraycopy(array, 0, newArray, 0, Math.min(oldLength, newLength));
+        return newArray;
+    }
+
+    /**
+     * Write a PNG "IHDR" chunk.
+     */
+    protected void writeHeader() {
+        // Colour Type GrayScale for 1bpp, the black and white PLTE maps 0 and 1 the same way
+        chunks.ihdr(width, height, imageDepth(), imageDepth() == 1 ? 0 : 3, interlaced ? 1 : 0);
+    }
+
+    /**
+     * Write the image data into the pngBytes array.
+     * This will write one or more PNG "IDAT" chunks. In order
+     * to conserve memory, this method grabs as many rows as will
+     * fit into 32K bytes, or the whole image; whichever is less.
+     *
+     *
+     * @return the compress image data or 0 length array on error
+     */
+    protected byte[] compressImageData() {
+        //int rowsLeft = height;  // number of rows remaining to write
+        //int startRow = 0;       // starting row to process this time through
+        //int nRows;              // how many rows to grab at a time
+
+        byte[] scanLines;       // the scan lines to be compressed
+        int scanPos;            // where we are in the scan lines
+        int startPos;           // where this line's actual pixels start (used for filtering)
+
+        byte[] compressedLines; // the resultant compressed lines
+
+        Deflater scrunch = new Deflater(compressionLevel);
+        ByteArrayOutputStream outBytes = new ByteArrayOutputStream(1024);
+
+        DeflaterOutputStream compBytes = new DeflaterOutputStream(outBytes, scrunch);
+        try {
+
+                int[] pixels = new int[width * height];
+
+                source.getPixels(pixels, 0, width, 0, height);
+
+
+                int scanLineLength = BitPacker.bytesPerRow(width);
+
+                scanLines = new byte[scanLineLength * height +  height]; //nrows is the filter per line
+
+                scanPos = 0;
+                for (int i = 0; i < height; i++) {
+
+                        //filter per line
+                        scanLines[scanPos++] = (byte) filter;
+
+                        // this variant sets the bit for black pixels
+                        startPos = scanPos;
+                        scanPos = BitPacker.packRow(pixels, i * width, width, scanLines, scanPos);
+                        BitPacker.invertRow(scanLines, startPos, width);
+                }
+
+                if (filter != FILTER_NONE) {
+                    ScanlineFilter.filterRows(scanLines, 0, height, scanLineLength, filter, null, null);
+                }
+
+                compBytes.write(scanLines, 0, scanPos);
+
+            compBytes.close();
+
+                scrunch.finish();
+
+            compressedLines = outBytes.toByteArray();
+
+            return compressedLines;
+
+        }
+        catch (IOException e) {
+            System.err.println(e.toString());
+            return new byte[0];
+        }
+        finally {
+            // the stream does not end a deflater it was given
+            scrunch.end();
+        }
+    }
+
+    /**
+     * Write the compressed image data as IDAT chunks of at most
+     * {@link #getIdatSize()} bytes, or a single chunk when no size is set.
+     */
+    private void writeImageData(byte[] compressedLines, int nCompressed) {
+        chunks.idat(compressedLines, 0, nCompressed, idatSize);
+    }
+
+    /**
+     * Write a PNG "IEND" chunk.
+     */
+    protected void writeEnd() {
+        chunks.iend();
+    }
+
+    /**
+     * Write the PLTE chunk: black and white for 1bpp, otherwise the
+     * colours collected while packing.
+     */
+    protected void writePalette() {
+        if (imageDepth() == 1) {
+            chunks.plte(PEBBLE_PALETTE, PEBBLE_PALETTE.length);
+            return;
+        }
+        if (paletteSize == 0) {
+            // at least one entry
+            paletteColors[0] = 0;
+        }
+        chunks.plte(paletteColors, Math.max(1, paletteSize));
+    }
+
+    private static void putInt4(ByteBuffer b, int n) {
+        // byte by byte, whatever the order of the buffer
+        b.put((byte) ((n >> 24) & 0xff));
+        b.put((byte) ((n >> 16) & 0xff));
+        b.put((byte) ((n >> 8) & 0xff));
+        b.put((byte) (n & 0xff));
+    }
+
+    private static int ConvertTo6Bit(int value) {
+        if (value < 43) return 0;
+        if (value < 129) return 85;
+        if (value < 213) return 170;
+        else return 255;
+    }
+
+    final protected static char[] hexArray = "0123456789ABCDEF".toCharArray();
+    public static String bytesToHex(byte[] bytes) {
+        char[] hexChars = new char[bytes.length * 2];
+        for ( int j = 0; j < bytes.length; j++ ) {
+            int v = bytes[j] & 0xFF;
+            hexChars[j * 2] = hexArray[v >>> 4];
+            hexChars[j * 2 + 1] = hexArray[v & 0x0F];
+        }
+        return new String(hexChars);
+    }
+
+    /**
+     * Write the PNG made by the last call to {@link #pngEncode()} to a file.
+     *
+     * @param fileName The file, created or replaced.
+     * @throws IOException if the file cannot be written
+     */
+    public void saveFile(String fileName) throws IOException {
+        FileOutputStream fos = new FileOutputStream(fileName);
+        try {
+            writeFully(fos.getChannel(), ByteBuffer.wrap(pngBytes));
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Write all remaining bytes of a buffer to a channel, e.g. a
+     * {@link FileChannel} after {@link #pngEncode(ByteBuffer)}.
+     *
+     * @param channel The channel, it is not closed.
+     * @param src The bytes between its position and limit are written.
+     * @throws IOException if the channel fails
+     */
+    public static void writeFully(WritableByteChannel channel, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+
+    /**
+     * Compress the image data, see {@link #deflateImageData(EncoderContext)}.
+     *
+     * @return the compressed image data
+     */
+    protected byte[] compressImageData2() {
+        EncoderContext ctx = activeContext();
+        int nCompressed = deflateImageData(ctx);
+        return resizeByteArray(ctx.compressed(nCompressed), nCompressed);
+    }
+
+    /**
+     * Pack and compress the image data using the buffers and deflater of
+     * the given context. The compressed bytes are left at the start of
+     * {@link EncoderContext#compressed(int)}.
+     *
+     * @param ctx The context to work in.
+     * @return the number of compressed bytes
+     */
+    protected int deflateImageData(EncoderContext ctx) {
+        int scanPos = packImageData(ctx);
+        if (incremental != null && !interlaced) {
+            int nCompressed = deflateIncremental(ctx, scanPos);
+            if (nCompressed >= 0) {
+                return nCompressed;
+            }
+        }
+        return deflateScanLines(ctx, scanPos);
+    }
+
+    /**
+     * Filter and compress packed scanlines, keeping the compressed rows
+     * above the first change since the last frame. The compressed bytes
+     * are left at the start of {@link EncoderContext#compressed(int)}.
+     *
+     * @param ctx The context holding the scanlines.
+     * @param scanPos The number of scanline bytes.
+     * @return the number of compressed bytes, or -1 if this runtime
+     *         cannot encode incrementally
+     */
+    private int deflateIncremental(EncoderContext ctx, int scanPos) {
+        long t = now();
+        int nCompressed = incremental.deflate(ctx.scanLines(scanPos), scanPos, height, filter,
+                compressionLevel, compressionStrategy, ctx);
+        if (nCompressed < 0) {
+            return -1;
+        }
+        System.arraycopy(incremental.getStream(), 0, ctx.compressed(nCompressed), 0, nCompressed);
+        // filtering is part of the deflate time, only the changed rows are filtered
+        metrics.deflateNanos += now() - t;
+        metrics.rawBytes = scanPos;
+        metrics.compressedBytes = nCompressed;
+        metrics.reusedRows = incremental.getReusedRows();
+        return nCompressed;
+    }
+
+    /**
+     * Filter and compress scanlines already packed by
+     * {@link #packImageData(EncoderContext)}. The compressed bytes are left
+     * at the start of {@link EncoderContext#compressed(int)}.
+     *
+     * @param ctx The context holding the scanlines.
+     * @param scanPos The number of scanline bytes.
+     * @return the number of compressed bytes
+     */
+    protected int deflateScanLines(EncoderContext ctx, int scanPos) {
+        byte[] scanLines = ctx.scanLines(scanPos);
+
+        long t = now();
+        if (interlaced) {
+            // the passes are gathered from the packed rows into the filtered buffer
+            byte[] passes = ctx.filtered(Adam7.size(width, height, imageDepth()));
+            scanPos = Adam7.interlace(scanLines, 1, rowBytes() + 1, width, height, imageDepth(), filter,
+                    passes, 0, passEnds);
+            scanLines = passes;
+        } else if (filter != FILTER_NONE && height > 0) {
+            ScanlineFilter.filterRows(scanLines, 0, height, scanPos / height - 1, filter, null, null);
+        }
+        long t2 = now();
+        metrics.filterNanos += t2 - t;
+        metrics.rawBytes = scanPos;
+
+        int nCompressed = -1;
+        if (compressionEngine == ENGINE_SPARSE && !interlaced) {
+            nCompressed = ctx.sparseDeflater().deflate(ctx, scanLines, scanPos, height > 0 ? scanPos / height : 0);
+            ctx.swapSpare();
+        } else if (parallelExecutor != null && height > 0 && !interlaced) {
+            // bands of whole rows
+            int stride = scanPos / height;
+            int bandLength = Math.max(1, parallelBandSize / stride) * stride;
+            nCompressed = ParallelDeflater.deflate(parallelExecutor, scanLines, 0, scanPos,
+                    bandLength, compressionLevel, compressionStrategy, ctx);
+        }
+
+        if (nCompressed < 0) {
+            nCompressed = deflateToSpare(ctx, scanLines, scanPos, compressionLevel, compressionStrategy);
+            ctx.swapSpare();
+        }
+        metrics.deflateNanos += now() - t2;
+        metrics.compressedBytes = nCompressed;
+        return nCompressed;
+    }
+
+    /**
+     * Fetch and pack the whole image into the context's scanline buffer,
+     * unfiltered; every row starts with a FILTER_NONE type byte.
+     *
+     * @param ctx The context to work in.
+     * @return the number of scanline bytes
+     */
+    protected int packImageData(EncoderContext ctx) {
+        int nRows = height;     // the whole image is packed at once
+
+        byte[] scanLines = ctx.scanLines((rowBytes() + 1) * nRows);
+        if (packedImage == null && bitDepth == 1 && source instanceof RawPixelSource) {
+            int scanPos = packRawRows(ctx, (RawPixelSource) source, scanLines);
+            if (scanPos >= 0) {
+                return scanPos;
+            }
+        }
+        int[] pixels = packedImage == null ? ctx.pixels(width * nRows) : null;
+        resetPalette();
+        int scanPos = fetchRows(ctx, pixels, 0, nRows, scanLines, 0);
+        warnPaletteOverflow();
+        return scanPos;
+    }
+
+    /**
+     * Pack the whole image from the 16 or 8 bit pixels of the source,
+     * sparing the ARGB buffer and its conversion.
+     *
+     * @param ctx The context to work in.
+     * @param raw The source.
+     * @param dst The array receiving the scanlines.
+     * @return the number of scanline bytes, or -1 if the source has no raw pixels
+     */
+    private int packRawRows(EncoderContext ctx, RawPixelSource raw, byte[] dst) {
+        int format = raw.getRawFormat();
+        if (format != RawPixelSource.RGB_565 && format != RawPixelSource.ALPHA_8) {
+            return -1;
+        }
+        int stride = raw.getRawStride();
+        long t = now();
+        int scanPos;
+        if (format == RawPixelSource.RGB_565) {
+            short[] pixels = ctx.pixels16(stride * height);
+            raw.copyRawPixels(pixels);
+            long t2 = now();
+            metrics.fetchNanos += t2 - t;
+            if (binarizer != null) {
+                scanPos = binarizer.packRows565(ctx, pixels, 0, stride, width, height, 0, FILTER_NONE, dst, 0);
+            } else {
+                scanPos = BitPacker.packRows565(pixels, 0, stride, width, height, FILTER_NONE, dst, 0);
+            }
+            metrics.packNanos += now() - t2;
+        } else {
+            byte[] alphas = ctx.pixels8(stride * height);
+            raw.copyRawPixels(alphas);
+            long t2 = now();
+            metrics.fetchNanos += t2 - t;
+            if (binarizer != null) {
+                scanPos = binarizer.packRowsAlpha8(ctx, alphas, 0, stride, width, height, 0, FILTER_NONE, dst, 0);
+            } else {
+                scanPos = BitPacker.packRowsAlpha8(alphas, 0, stride, width, height, FILTER_NONE, dst, 0);
+            }
+            metrics.packNanos += now() - t2;
+        }
+        return scanPos;
+    }
+
+    /**
+     * Bits per pixel of the image being encoded; a packed image is always 1.
+     *
+     * @return 1, 2, 4 or 8
+     */
+    protected int imageDepth() {
+        return packedImage != null ? 1 : bitDepth;
+    }
+
+    /**
+     * Bytes per packed row of the image being encoded, without the filter byte.
+     *
+     * @return bytes per row
+     */
+    protected int rowBytes() {
+        return (width * imageDepth() + 7) >>> 3;
+    }
+
+    /** Start a new palette for the next image. */
+    private void resetPalette() {
+        colorMap.clear();
+        paletteSize = 0;
+        paletteOverflow = 0;
+    }
+
+    private void warnPaletteOverflow() {
+        if (paletteOverflow > 0) {
+            warn("Bad colour image - more than " + (1 << bitDepth) + " colours! ("
+                    + (paletteSize + paletteOverflow) + ")");
+        }
+    }
+
+    /**
+     * Report a problem with the image that did not stop the encode.
+     *
+     * @param message What went wrong.
+     */
+    protected void warn(String message) {
+        System.err.println(message);
+    }
+
+    /**
+     * The palette index of a colour, adding it to the palette while
+     * there is room and mapping it to the nearest entry after that.
+     *
+     * @param argb The colour.
+     * @return its index
+     */
+    private int paletteIndex(int argb) {
+        int index = colorMap.get(argb);
+        if (index < 0) {
+            if (paletteSize < (1 << bitDepth)) {
+                index = paletteSize;
+                paletteColors[paletteSize++] = argb;
+            } else {
+                index = nearestPaletteIndex(argb);
+                paletteOverflow++;
+            }
+            colorMap.put(argb, index);
+        }
+        return index;
+    }
+
+    private int nearestPaletteIndex(int argb) {
+        int best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < paletteSize; i++) {
+            int c = paletteColors[i];
+            int dr = ((c >> 16) & 0xff) - ((argb >> 16) & 0xff);
+            int dg = ((c >> 8) & 0xff) - ((argb >> 8) & 0xff);
+            int db = (c & 0xff) - (argb & 0xff);
+            int distance = dr * dr + dg * dg + db * db;
+            if (distance < bestDistance) {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Pack rows of pixels as palette indices of bitDepth bits, each row
+     * preceded by a FILTER_NONE type byte.
+     */
+    private int packIndexedRows(int[] pixels, int rows, byte[] dst, int dstPos) {
+        int depth = bitDepth;
+        int perByte = 8 / depth;
+        int p = 0;
+        for (int r = 0; r < rows; r++) {
+            dst[dstPos++] = (byte) FILTER_NONE;
+            int b = 0;
+            int n = 0;
+            for (int x = 0; x < width; x++) {
+                b = (b << depth) | paletteIndex(pixels[p++]);
+                if (++n == perByte) {
+                    dst[dstPos++] = (byte) b;
+                    b = 0;
+                    n = 0;
+                }
+            }
+            if (n != 0) {
+                dst[dstPos++] = (byte) (b << (8 - n * depth));
+            }
+        }
+        return dstPos;
+    }
+
+    /**
+     * The time for the metrics.
+     *
+     * @return System.nanoTime(), or 0 when there is no listener so the clock is not read
+     */
+    private long now() {
+        return encodeListener != null ? System.nanoTime() : 0;
+    }
+
+    private void beginMetrics(EncoderContext ctx) {
+        if (encodeListener != null) {
+            metrics.reset();
+            metrics.totalNanos = System.nanoTime();
+            startResizes = ctx.getResizeCount();
+        }
+    }
+
+    private void endMetrics(EncoderContext ctx, long outputBytes) {
+        if (encodeListener != null) {
+            metrics.totalNanos = System.nanoTime() - metrics.totalNanos;
+            metrics.outputBytes = outputBytes;
+            metrics.resizes += ctx.getResizeCount() - startResizes;
+            encodeListener.onEncoded(metrics);
+        }
+    }
+
+    private byte[] endMetrics(EncoderContext ctx, byte[] png) {
+        endMetrics(ctx, png.length);
+        return png;
+    }
+
+    /**
+     * Read the size of the image to encode into width and height.
+     *
+     * @return false if there is no image
+     */
+    protected boolean loadImageSize() {
+        if (source != null) {
+            width = source.getWidth();
+            height = source.getHeight();
+            return true;
+        }
+        if (packedImage != null) {
+            width = packedWidth;
+            height = packedHeight;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get a block of rows as unfiltered scanlines, each preceded by a
+     * FILTER_NONE type byte: packed from the pixel source, or copied from the
+     * packed image.
+     *
+     * @param ctx The context to work in.
+     * @param pixels Buffer for width * rows ARGB pixels; unused for a packed image.
+     * @param startRow The first row.
+     * @param rows Number of rows.
+     * @param dst The array receiving the scanlines.
+     * @param dstPos Where the first scanline starts in dst.
+     * @return The next place to be written to in dst.
+     */
+    protected int fetchRows(EncoderContext ctx, int[] pixels, int startRow, int rows, byte[] dst, int dstPos) {
+        long t = now();
+        if (packedImage == null) {
+            source.getPixels(pixels, 0, width, startRow, rows);
+            long t2 = now();
+            metrics.fetchNanos += t2 - t;
+            if (bitDepth > 1) {
+                dstPos = packIndexedRows(pixels, rows, dst, dstPos);
+            } else if (binarizer != null) {
+                dstPos = binarizer.packRows(ctx, pixels, 0, width, rows, startRow, FILTER_NONE, dst, dstPos);
+            } else {
+                dstPos = BitPacker.packRows(pixels, 0, width, rows, FILTER_NONE, dst, dstPos);
+            }
+            metrics.packNanos += now() - t2;
+            return dstPos;
+        }
+        int rowBytes = BitPacker.bytesPerRow(width);
+        int srcPos = startRow * rowBytes;
+        for (int i = 0; i < rows; i++) {
+            dst[dstPos++] = (byte) FILTER_NONE;
+            System.arraycopy(packedImage, srcPos, dst, dstPos, rowBytes);
+            srcPos += rowBytes;
+            dstPos += rowBytes;
+        }
+        metrics.fetchNanos += now() - t;
+        return dstPos;
+    }
+
+    /**
+     * Deflate data into the context's spare buffer.
+     *
+     * @param ctx The context to work in.
+     * @param data The bytes to compress.
+     * @param len How many there are.
+     * @param level Deflate level, 0 through 9.
+     * @param strategy Deflate strategy.
+     * @return the number of compressed bytes in {@link EncoderContext#spare(int)}
+     */
+    private int deflateToSpare(EncoderContext ctx, byte[] data, int len, int level, int strategy) {
+        Deflater scrunch = ctx.deflater(level, strategy);
+        byte[] compressedLines = ctx.spare(Math.max(1024, len / 8));
+        int nCompressed = 0;
+        int start = 0;
+        if (interlaced && ParallelDeflater.SUPPORTED) {
+            // a sync flush after each pass lets a decoder show it before the next one arrives
+            for (int p = 0; p < Adam7.PASSES - 1; p++) {
+                if (passEnds[p] == start) {
+                    continue;
+                }
+                scrunch.setInput(data, start, passEnds[p] - start);
+                start = passEnds[p];
+                int n;
+                int room;
+                do {
+                    if (nCompressed == compressedLines.length) {
+                        compressedLines = ctx.spare(nCompressed + 1);
+                    }
+                    room = compressedLines.length - nCompressed;
+                    n = scrunch.deflate(compressedLines, nCompressed, room, Deflater.SYNC_FLUSH);
+                    nCompressed += n;
+                    // a changed level is applied by a first call that may stop short of the flush
+                } while (n == room || !scrunch.needsInput());
+            }
+        }
+        scrunch.setInput(data, start, len - start);
+        scrunch.finish();
+
+        while (!scrunch.finished()) {
+            if (nCompressed == compressedLines.length) {
+                compressedLines = ctx.spare(nCompressed + 1);
+            }
+            nCompressed += scrunch.deflate(compressedLines, nCompressed, compressedLines.length - nCompressed);
+        }
+        return nCompressed;
+    }
+
+    /** A tEXt or zTXt chunk to write. */
+    private static final class TextEntry {
+        final String keyword;
+        final String text;
+        final boolean compressed;
+
+        TextEntry(String keyword, String text, boolean compressed) {
+            this.keyword = keyword;
+            this.text = text;
+            this.compressed = compressed;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package littlemansoftware.bpppngencoder.util;
+
+/**
+ * A {@link PixelSource} that can also hand over its pixels in the format
+ * they are stored in, as an RGB_565 or ALPHA_8 Bitmap does.
+ *
+ * <p>Reading 16 or 8 bit pixels costs a straight copy of a half or a
+ * quarter of the bytes of the ARGB colours, with no conversion. At one
+ * bit per pixel {@link PngEncoder} binarizes them directly, giving the
+ * same image as through {@link #getPixels}.</p>
+ */
+public interface RawPixelSource extends PixelSource {
+
+    /** Only ARGB colours, through {@link #getPixels}. */
+    int ARGB = 0;
+
+    /** 16 bit pixels, red in the top 5 bits, green in the next 6, blue in the low 5. */
+    int RGB_565 = 16;
+
+    /** 8 bit alpha values over black. */
+    int ALPHA_8 = 8;
+
+    /**
+     * Retrieve the format the pixels are stored in
+     *
+     * @return RGB_565, ALPHA_8, or ARGB when they can only be read as colours
+     */
+    int getRawFormat();
+
+    /**
+     * Retrieve the distance between rows of the raw pixels
+     *
+     * @return the stride in pixels, at least the width
+     */
+    int getRawStride();
+
+    /**
+     * Copy the whole image as RGB_565 pixels, top row first.
+     *
+     * @param dst The array receiving the pixels, at least raw stride * height long.
+     */
+    void copyRawPixels(short[] dst);
+
+    /**
+     * Copy the whole image as ALPHA_8 pixels, top row first.
+     *
+     * @param dst The array receiving the pixels, at least raw stride * height long.
+     */
+    void copyRawPixels(byte[] dst);
+}
@@ -0,0 +1,203 @@
+package littlemansoftware.bpppngencoder.util;
+
+/**
+ * PNG row filters for packed scanlines.
+ *
+ * <p>Scanlines are laid out as PNG stores them: a filter type byte
+ * followed by the packed row. Images of 8 bits per pixel or less filter
+ * on whole bytes, so the "left" byte is always the previous byte of the
+ * row and no bytes-per-pixel stride is needed.</p>
+ *
+ * <p>Filtering runs in place. Rows of a block are handled bottom-up, so
+ * the row above the one being filtered still holds its raw bytes.</p>
+ */
+public final class ScanlineFilter {
+
+    /** Filter type None. */
+    public static final int NONE = 0;
+
+    /** Filter type Sub. */
+    public static final int SUB = 1;
+
+    /** Filter type Up. */
+    public static final int UP = 2;
+
+    /** Filter type Average. */
+    public static final int AVERAGE = 3;
+
+    /** Filter type Paeth. */
+    public static final int PAETH = 4;
+
+    /** Pick the filter per row, see {@link #choose}. */
+    public static final int ADAPTIVE = 5;
+
+    private ScanlineFilter() {
+    }
+
+    /**
+     * Filter a block of scanlines in place. The type byte of each scanline
+     * is overwritten with the filter actually applied.
+     *
+     * @param scan The scanlines.
+     * @param pos Where the first scanline (its type byte) starts.
+     * @param rows Number of scanlines in the block.
+     * @param rowBytes Bytes per row, without the type byte.
+     * @param filter One of NONE, SUB, UP, AVERAGE, PAETH or ADAPTIVE.
+     * @param prior Raw bytes of the row above the block, or null if the block starts the image.
+     * @param lastRow If not null, receives the raw bytes of the last row of the block.
+     */
+    public static void filterRows(byte[] scan, int pos, int rows, int rowBytes, int filter,
+                                  byte[] prior, byte[] lastRow) {
+        int stride = rowBytes + 1;
+        if (lastRow != null && rows > 0) {
+            System.arraycopy(scan, pos + (rows - 1) * stride + 1, lastRow, 0, rowBytes);
+        }
+        for (int r = rows - 1; r >= 0; r--) {
+            int rowPos = pos + r * stride;
+            byte[] up;
+            int upPos;
+            if (r > 0) {
+                up = scan;
+                upPos = rowPos - stride + 1;
+            } else {
+                up = prior;
+                upPos = 0;
+            }
+            int type = filter == ADAPTIVE ? choose(scan, rowPos + 1, up, upPos, rowBytes) : filter;
+            scan[rowPos] = (byte) type;
+            filterRow(type, scan, rowPos + 1, up, upPos, rowBytes);
+        }
+    }
+
+    /**
+     * Filter one row in place.
+     *
+     * @param type One of NONE, SUB, UP, AVERAGE or PAETH.
+     * @param row The array holding the row.
+     * @param pos Where the row bytes start (after the type byte).
+     * @param up The array holding the raw row above, or null for a row of zeros.
+     * @param upPos Where the row above starts.
+     * @param len Bytes in the row.
+     */
+    public static void filterRow(int type, byte[] row, int pos, byte[] up, int upPos, int len) {
+        switch (type) {
+            case SUB:
+                // right to left, so the left byte is still raw
+                for (int i = len - 1; i > 0; i--) {
+                    row[pos + i] = (byte) (row[pos + i] - row[pos + i - 1]);
+                }
+                break;
+            case UP:
+                if (up != null) {
+                    for (int i = 0; i < len; i++) {
+                        row[pos + i] = (byte) (row[pos + i] - up[upPos + i]);
+                    }
+                }
+                break;
+            case AVERAGE:
+                if (up == null) {
+                    for (int i = len - 1; i > 0; i--) {
+                        row[pos + i] = (byte) (row[pos + i] - ((row[pos + i - 1] & 0xff) >>> 1));
+                    }
+                } else {
+                    for (int i = len - 1; i > 0; i--) {
+                        int avg = ((row[pos + i - 1] & 0xff) + (up[upPos + i] & 0xff)) >>> 1;
+                        row[pos + i] = (byte) (row[pos + i] - avg);
+                    }
+                    row[pos] = (byte) (row[pos] - ((up[upPos] & 0xff) >>> 1));
+                }
+                break;
+            case PAETH:
+                if (up == null) {
+                    // with no row above Paeth predicts the left byte, same as Sub
+                    for (int i = len - 1; i > 0; i--) {
+                        row[pos + i] = (byte) (row[pos + i] - row[pos + i - 1]);
+                    }
+                } else {
+                    for (int i = len - 1; i > 0; i--) {
+                        int pred = paeth(row[pos + i - 1] & 0xff, up[upPos + i] & 0xff, up[upPos + i - 1] & 0xff);
+                        row[pos + i] = (byte) (row[pos + i] - pred);
+                    }
+                    row[pos] = (byte) (row[pos] - up[upPos]);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * The Paeth predictor from the PNG specification.
+     *
+     * @param a The byte to the left.
+     * @param b The byte above.
+     * @param c The byte above and to the left.
+     * @return whichever of a, b or c is closest to a + b - c
+     */
+    public static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * Pick the filter leaving the fewest non-zero bytes in a row, reading
+     * the filtered values without writing them.
+     * The usual minimum sum of absolute differences treats bytes as
+     * magnitudes; packed pixels are bit patterns, where a zero byte is
+     * what deflate compresses best, so the count of non-zero bytes
+     * predicts the compressed size better.
+     *
+     * @param row The array holding the raw row.
+     * @param pos Where the row bytes start.
+     * @param up The array holding the raw row above, or null for a row of zeros.
+     * @param upPos Where the row above starts.
+     * @param len Bytes in the row.
+     * @return the filter type with the lowest cost
+     */
+    public static int choose(byte[] row, int pos, byte[] up, int upPos, int len) {
+        int none = 0, sub = 0, upSum = 0, avg = 0, paeth = 0;
+        int left = 0, upLeft = 0;
+        for (int i = 0; i < len; i++) {
+            int x = row[pos + i] & 0xff;
+            int b = up != null ? up[upPos + i] & 0xff : 0;
+            none += cost(x);
+            sub += cost(x - left);
+            upSum += cost(x - b);
+            avg += cost(x - ((left + b) >>> 1));
+            paeth += cost(x - paeth(left, b, upLeft));
+            left = x;
+            upLeft = b;
+        }
+
+        int best = NONE;
+        int bestSum = none;
+        if (sub < bestSum) {
+            best = SUB;
+            bestSum = sub;
+        }
+        if (upSum < bestSum) {
+            best = UP;
+            bestSum = upSum;
+        }
+        if (avg < bestSum) {
+            best = AVERAGE;
+            bestSum = avg;
+        }
+        if (paeth < bestSum) {
+            best = PAETH;
+        }
+        return best;
+    }
+
+    /** 1 when the low byte of a filtered value is not zero, 0 otherwise. */
+    private static int cost(int d) {
+        int v = d & 0xff;
+        return (v | -v) >>> 31;
+    }
+}
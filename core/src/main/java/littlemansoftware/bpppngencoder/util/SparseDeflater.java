@@ -0,0 +1,636 @@
+package littlemansoftware.bpppngencoder.util;
+
+import java.util.Arrays;
+import java.util.zip.Adler32;
+
+/**
+ * A deflate encoder in plain Java for packed 1bpp scanlines.
+ *
+ * <p>Text frames are mostly runs of 0x00 or 0xFF bytes, rows that repeat
+ * the row above, and the same few glyph patterns over and over. Rather
+ * than the general match search of {@code java.util.zip.Deflater} at
+ * high levels, each position tries a handful of likely distances first:
+ * 1 to {@link #SHORT_DISTANCES} bytes back for runs and narrow patterns,
+ * one row back for the byte above, and only then a short hash chain for
+ * glyphs seen elsewhere. Matches are chosen lazily, one byte ahead, as
+ * zlib does at its higher levels.</p>
+ *
+ * <p>The whole image is written as one block with dynamic Huffman codes
+ * built from its own symbol counts, or as stored blocks when those come
+ * out smaller, e.g. for noise. The output is an ordinary zlib stream.</p>
+ *
+ * <p>An instance keeps its tables between images and is not thread
+ * safe; {@link EncoderContext#sparseDeflater()} holds one per context.</p>
+ */
+public final class SparseDeflater {
+
+    /** Distances of 1 up to this many bytes are always tried. */
+    public static final int SHORT_DISTANCES = 4;
+
+    private static final int WINDOW = 32768;
+    private static final int WINDOW_MASK = WINDOW - 1;
+    private static final int MIN_MATCH = 3;
+    private static final int MAX_MATCH = 258;
+
+    private static final int HASH_BITS = 15;
+    private static final int MAX_CHAIN = 8;
+
+    /**
+     * Of a run longer than this, at one of the short distances, only the
+     * end is added to the hash chains; the short distances find it again.
+     */
+    private static final int MAX_INSERT = 32;
+
+    /** Bytes between checks whether matching still pays. */
+    private static final int CHECK_INTERVAL = 8192;
+
+    /** Matches of MIN_MATCH bytes further back than this are not used. */
+    private static final int TOO_FAR = 4096;
+
+    /** A match at least this long is taken without looking one byte ahead. */
+    private static final int LAZY_MATCH = 32;
+
+    private static final int END_OF_BLOCK = 256;
+    private static final int LITERAL_CODES = 286;
+    private static final int DISTANCE_CODES = 30;
+    private static final int LENGTH_CODES = 19;
+
+    private static final int MAX_BITS = 15;
+    private static final int MAX_LENGTH_BITS = 7;
+
+    private static final int MAX_STORED = 65535;
+
+    private static final int[] LENGTH_BASE = {
+            3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+            35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+    private static final int[] LENGTH_EXTRA = {
+            0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+            3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+    private static final int[] DIST_BASE = {
+            1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+            257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577};
+    private static final int[] DIST_EXTRA = {
+            0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+            7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+
+    /** Order the code length code lengths are sent in. */
+    private static final int[] LENGTH_ORDER = {
+            16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+    /** Length code, less 257, of each match length. */
+    private static final byte[] LENGTH_CODE = new byte[MAX_MATCH + 1];
+
+    /** Distance code of distance - 1 below 256, then of (distance - 1) >> 7 from 256 on. */
+    private static final byte[] DIST_CODE = new byte[512];
+
+    static {
+        for (int c = 0; c < LENGTH_BASE.length; c++) {
+            int end = c == LENGTH_BASE.length - 1 ? MAX_MATCH + 1 : LENGTH_BASE[c + 1];
+            for (int len = LENGTH_BASE[c]; len < end; len++) {
+                LENGTH_CODE[len] = (byte) c;
+            }
+        }
+        for (int c = 0; c < DIST_BASE.length; c++) {
+            for (int d = DIST_BASE[c] - 1; d < DIST_BASE[c] - 1 + (1 << DIST_EXTRA[c]); d++) {
+                if (d < 256) {
+                    DIST_CODE[d] = (byte) c;
+                } else {
+                    DIST_CODE[256 + (d >> 7)] = (byte) c;
+                }
+            }
+        }
+    }
+
+    /** Latest position plus one of each hash, 0 for none. */
+    private final int[] head = new int[1 << HASH_BITS];
+
+    /** Previous position plus one with the same hash, by position in the window. */
+    private final int[] prev = new int[WINDOW];
+
+    /** Literals as their byte, matches as distance << 9 | length. */
+    private int[] tokens = new int[0];
+    private int nTokens;
+
+    private final int[] literalFreq = new int[LITERAL_CODES];
+    private final int[] distanceFreq = new int[DISTANCE_CODES];
+    private final int[] lengthFreq = new int[LENGTH_CODES];
+
+    private final int[] literalBits = new int[LITERAL_CODES];
+    private final int[] distanceBits = new int[DISTANCE_CODES];
+    private final int[] lengthBits = new int[LENGTH_CODES];
+
+    private final int[] literalCodes = new int[LITERAL_CODES];
+    private final int[] distanceCodes = new int[DISTANCE_CODES];
+    private final int[] lengthCodes = new int[LENGTH_CODES];
+
+    /** Code lengths of both trees run-length coded: symbol | repeat << 8. */
+    private final int[] lengthTokens = new int[LITERAL_CODES + DISTANCE_CODES];
+    private int nLengthTokens;
+
+    /** Scratch for building Huffman codes. */
+    private final int[] symbols = new int[LITERAL_CODES];
+    private final long[] weights = new long[2 * LITERAL_CODES];
+    private final int[] parents = new int[2 * LITERAL_CODES];
+    private final int[] scaled = new int[LITERAL_CODES];
+    private final int[] bitCounts = new int[MAX_BITS + 1];
+    private final int[] nextCodes = new int[MAX_BITS + 1];
+
+    private final Adler32 adler32 = new Adler32();
+
+    /** Distance of the match found by the last {@link #findMatch}. */
+    private int matchDistance;
+
+    private byte[] out;
+    private int outPos;
+    private long bitBuffer;
+    private int bitCount;
+
+    /**
+     * Compress scanlines into a zlib stream, left at the start of
+     * {@link EncoderContext#spare(int)}.
+     *
+     * @param ctx The context supplying the output buffer.
+     * @param data The scanlines, from the start of the array.
+     * @param len How many bytes there are.
+     * @param stride Distance between rows, filter type byte included; 0 if unknown.
+     * @return the number of compressed bytes
+     */
+    public int deflate(EncoderContext ctx, byte[] data, int len, int stride) {
+        findMatches(data, len, stride);
+        buildCodes();
+
+        long storedBytes = len + 5L * Math.max(1, (len + MAX_STORED - 1) / MAX_STORED);
+        long huffmanBytes = (huffmanBits() + 7) >> 3;
+        boolean stored = storedBytes <= huffmanBytes;
+        int size = (int) Math.min(storedBytes, huffmanBytes) + 6;
+
+        out = ctx.spare(size);
+        outPos = 0;
+        bitBuffer = 0;
+        bitCount = 0;
+        out[outPos++] = 0x78;
+        out[outPos++] = (byte) ParallelDeflater.zlibFlags(9);
+        if (stored) {
+            writeStored(data, len);
+        } else {
+            writeHuffman();
+        }
+        adler32.reset();
+        adler32.update(data, 0, len);
+        long adler = adler32.getValue();
+        out[outPos++] = (byte) (adler >> 24);
+        out[outPos++] = (byte) (adler >> 16);
+        out[outPos++] = (byte) (adler >> 8);
+        out[outPos++] = (byte) adler;
+        int n = outPos;
+        out = null;
+        return n;
+    }
+
+    /**
+     * Turn the scanlines into literals and matches, counting the
+     * symbols as they go.
+     */
+    private void findMatches(byte[] data, int len, int stride) {
+        Arrays.fill(head, 0);
+        Arrays.fill(literalFreq, 0);
+        Arrays.fill(distanceFreq, 0);
+        if (tokens.length < len) {
+            tokens = new int[len];
+        }
+        nTokens = 0;
+
+        int last = len - MIN_MATCH;     // the last position a match can start at
+        int prevLength = 0;             // match starting at the byte before i
+        int prevDistance = 0;
+        boolean pending = false;        // the byte before i is not yet emitted
+        int nextCheck = CHECK_INTERVAL;
+        int i = 0;
+        while (i < len) {
+            if (i >= nextCheck && prevLength < MIN_MATCH) {
+                nextCheck += CHECK_INTERVAL;
+                if (nTokens > i - (i >> 4)) {
+                    // hardly anything matched so far, e.g. noise: the rest goes as literals
+                    if (pending) {
+                        emitLiteral(data[i - 1] & 0xff);
+                    }
+                    for (; i < len; i++) {
+                        emitLiteral(data[i] & 0xff);
+                    }
+                    pending = false;
+                    break;
+                }
+            }
+            int length = 0;
+            int distance = 0;
+            if (prevLength < LAZY_MATCH && i <= last) {
+                length = findMatch(data, i, len, stride);
+                distance = matchDistance;
+            }
+            if (prevLength >= MIN_MATCH && length <= prevLength) {
+                // no better match one byte on, take the one before
+                emitMatch(prevLength, prevDistance);
+                int end = i - 1 + prevLength;
+                // i itself was added by findMatch unless the match was taken at once
+                int k = prevLength < LAZY_MATCH ? i + 1 : i;
+                if (prevLength > MAX_INSERT && prevDistance <= SHORT_DISTANCES) {
+                    k = Math.max(k, end - SHORT_DISTANCES);
+                }
+                for (; k < end && k <= last; k++) {
+                    insert(data, k);
+                }
+                i = end;
+                prevLength = 0;
+                pending = false;
+            } else {
+                if (pending) {
+                    emitLiteral(data[i - 1] & 0xff);
+                }
+                prevLength = length;
+                prevDistance = distance;
+                pending = true;
+                i++;
+            }
+        }
+        if (pending) {
+            emitLiteral(data[len - 1] & 0xff);
+        }
+        literalFreq[END_OF_BLOCK]++;
+    }
+
+    /**
+     * The longest match for position i: short distances, the row above,
+     * then the hash chain. Adds i to the chains.
+     *
+     * @return its length, less than MIN_MATCH if there is none; the
+     *         distance is left in matchDistance
+     */
+    private int findMatch(byte[] data, int i, int len, int stride) {
+        int max = Math.min(MAX_MATCH, len - i);
+        int best = 0;
+        int bestDistance = 0;
+        int shortest = Math.min(SHORT_DISTANCES, i);
+        for (int d = 1; d <= shortest && best < max; d++) {
+            int n = matchLength(data, i, d, max, best);
+            if (n > best) {
+                best = n;
+                bestDistance = d;
+            }
+        }
+        if (stride > SHORT_DISTANCES && stride <= i && best < max) {
+            int n = matchLength(data, i, stride, max, best);
+            if (n > best) {
+                best = n;
+                bestDistance = stride;
+            }
+        }
+
+        int h = hash(data, i);
+        int candidate = head[h] - 1;
+        int chain = MAX_CHAIN;
+        while (candidate >= 0 && best < max && chain-- > 0) {
+            int d = i - candidate;
+            if (d > WINDOW) {
+                break;
+            }
+            if (d > SHORT_DISTANCES && d != stride) {
+                int n = matchLength(data, i, d, max, best);
+                if (n > best) {
+                    best = n;
+                    bestDistance = d;
+                }
+            }
+            int next = prev[candidate & WINDOW_MASK] - 1;
+            if (next >= candidate) {
+                // the slot was taken over by a newer position
+                break;
+            }
+            candidate = next;
+        }
+        prev[i & WINDOW_MASK] = head[h];
+        head[h] = i + 1;
+
+        if (best == MIN_MATCH && bestDistance > TOO_FAR) {
+            // three literals cost less than a short match that far back
+            best = 0;
+        }
+        matchDistance = bestDistance;
+        return best;
+    }
+
+    /**
+     * Bytes matching at i and distance d back, 0 if it cannot beat best.
+     */
+    private static int matchLength(byte[] data, int i, int d, int max, int best) {
+        int j = i - d;
+        if (best > 0 && data[i + best] != data[j + best]) {
+            return 0;
+        }
+        int n = 0;
+        while (n < max && data[i + n] == data[j + n]) {
+            n++;
+        }
+        return n;
+    }
+
+    private void insert(byte[] data, int i) {
+        int h = hash(data, i);
+        prev[i & WINDOW_MASK] = head[h];
+        head[h] = i + 1;
+    }
+
+    private static int hash(byte[] data, int i) {
+        int v = (data[i] & 0xff) | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff) << 16;
+        return (v * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+
+    private void emitLiteral(int b) {
+        tokens[nTokens++] = b;
+        literalFreq[b]++;
+    }
+
+    private void emitMatch(int length, int distance) {
+        tokens[nTokens++] = distance << 9 | length;
+        literalFreq[257 + LENGTH_CODE[length]]++;
+        distanceFreq[distanceCode(distance)]++;
+    }
+
+    private static int distanceCode(int distance) {
+        int d = distance - 1;
+        return d < 256 ? DIST_CODE[d] : DIST_CODE[256 + (d >> 7)];
+    }
+
+    /** Build the literal/length, distance and code length codes. */
+    private void buildCodes() {
+        // a decoder wants two codes at least in each tree
+        ensureTwoCodes(literalFreq, LITERAL_CODES);
+        ensureTwoCodes(distanceFreq, DISTANCE_CODES);
+        buildLengths(literalFreq, LITERAL_CODES, MAX_BITS, literalBits);
+        buildLengths(distanceFreq, DISTANCE_CODES, MAX_BITS, distanceBits);
+
+        int nLiterals = LITERAL_CODES;
+        while (nLiterals > 257 && literalBits[nLiterals - 1] == 0) {
+            nLiterals--;
+        }
+        int nDistances = DISTANCE_CODES;
+        while (nDistances > 1 && distanceBits[nDistances - 1] == 0) {
+            nDistances--;
+        }
+        runLengthCodeLengths(nLiterals, nDistances);
+        ensureTwoCodes(lengthFreq, LENGTH_CODES);
+        buildLengths(lengthFreq, LENGTH_CODES, MAX_LENGTH_BITS, lengthBits);
+
+        canonicalCodes(literalBits, LITERAL_CODES, literalCodes);
+        canonicalCodes(distanceBits, DISTANCE_CODES, distanceCodes);
+        canonicalCodes(lengthBits, LENGTH_CODES, lengthCodes);
+    }
+
+    private static void ensureTwoCodes(int[] freq, int n) {
+        int used = 0;
+        for (int s = 0; s < n && used < 2; s++) {
+            if (freq[s] > 0) {
+                used++;
+            }
+        }
+        for (int s = 0; s < n && used < 2; s++) {
+            if (freq[s] == 0) {
+                freq[s] = 1;
+                used++;
+            }
+        }
+    }
+
+    /**
+     * Huffman code lengths of at most maxBits; counts are halved until
+     * the tree is shallow enough.
+     */
+    private void buildLengths(int[] freq, int n, int maxBits, int[] bits) {
+        System.arraycopy(freq, 0, scaled, 0, n);
+        while (true) {
+            int m = 0;
+            for (int s = 0; s < n; s++) {
+                if (scaled[s] > 0) {
+                    weights[m] = (long) scaled[s] << 9 | s;
+                    m++;
+                }
+            }
+            Arrays.sort(weights, 0, m);
+            for (int k = 0; k < m; k++) {
+                symbols[k] = (int) (weights[k] & 0x1ff);
+                weights[k] >>>= 9;
+            }
+
+            // two queues: the sorted leaves, and the internal nodes in the order they are made
+            int leaf = 0;
+            int node = m;
+            for (int next = m; next < 2 * m - 1; next++) {
+                int a = leaf < m && (node >= next || weights[leaf] <= weights[node]) ? leaf++ : node++;
+                int b = leaf < m && (node >= next || weights[leaf] <= weights[node]) ? leaf++ : node++;
+                weights[next] = weights[a] + weights[b];
+                parents[a] = next;
+                parents[b] = next;
+            }
+            Arrays.fill(bits, 0, n, 0);
+            int deepest = 0;
+            // depths are kept in parents, the root is at depth 0
+            parents[2 * m - 2] = 0;
+            for (int k = 2 * m - 3; k >= 0; k--) {
+                parents[k] = parents[parents[k]] + 1;
+                deepest = Math.max(deepest, parents[k]);
+            }
+            if (deepest <= maxBits) {
+                for (int k = 0; k < m; k++) {
+                    bits[symbols[k]] = parents[k];
+                }
+                return;
+            }
+            for (int s = 0; s < n; s++) {
+                if (scaled[s] > 0) {
+                    scaled[s] = (scaled[s] >> 1) | 1;
+                }
+            }
+        }
+    }
+
+    /** Canonical codes from code lengths, bit reversed for writing. */
+    private void canonicalCodes(int[] bits, int n, int[] codes) {
+        Arrays.fill(bitCounts, 0);
+        for (int s = 0; s < n; s++) {
+            bitCounts[bits[s]]++;
+        }
+        bitCounts[0] = 0;
+        int code = 0;
+        for (int b = 1; b <= MAX_BITS; b++) {
+            code = (code + bitCounts[b - 1]) << 1;
+            nextCodes[b] = code;
+        }
+        for (int s = 0; s < n; s++) {
+            int b = bits[s];
+            if (b > 0) {
+                codes[s] = Integer.reverse(nextCodes[b]++) >>> (32 - b);
+            }
+        }
+    }
+
+    /**
+     * Run-length code the code lengths of both trees with symbols 16, 17
+     * and 18, counting the symbols.
+     */
+    private void runLengthCodeLengths(int nLiterals, int nDistances) {
+        Arrays.fill(lengthFreq, 0);
+        nLengthTokens = 0;
+        int total = nLiterals + nDistances;
+        int k = 0;
+        while (k < total) {
+            int b = codeLength(k, nLiterals);
+            int run = 1;
+            while (k + run < total && codeLength(k + run, nLiterals) == b) {
+                run++;
+            }
+            k += run;
+            if (b == 0) {
+                while (run >= 11) {
+                    int r = Math.min(run, 138);
+                    addLengthToken(18, r);
+                    run -= r;
+                }
+                if (run >= 3) {
+                    addLengthToken(17, run);
+                    run = 0;
+                }
+            } else {
+                addLengthToken(b, 0);
+                run--;
+                while (run >= 3) {
+                    int r = Math.min(run, 6);
+                    addLengthToken(16, r);
+                    run -= r;
+                }
+            }
+            while (run-- > 0) {
+                addLengthToken(b, 0);
+            }
+        }
+    }
+
+    private int codeLength(int k, int nLiterals) {
+        return k < nLiterals ? literalBits[k] : distanceBits[k - nLiterals];
+    }
+
+    private void addLengthToken(int symbol, int repeat) {
+        lengthTokens[nLengthTokens++] = symbol | repeat << 8;
+        lengthFreq[symbol]++;
+    }
+
+    /** Bits of the Huffman block, header included. */
+    private long huffmanBits() {
+        long bits = 3 + 5 + 5 + 4 + 3 * lengthCodeCount();
+        for (int k = 0; k < nLengthTokens; k++) {
+            int symbol = lengthTokens[k] & 0xff;
+            bits += lengthBits[symbol] + (symbol == 16 ? 2 : symbol == 17 ? 3 : symbol == 18 ? 7 : 0);
+        }
+        for (int s = 0; s < LITERAL_CODES; s++) {
+            if (literalFreq[s] > 0) {
+                int extra = s > 256 ? LENGTH_EXTRA[s - 257] : 0;
+                bits += (long) literalFreq[s] * (literalBits[s] + extra);
+            }
+        }
+        for (int s = 0; s < DISTANCE_CODES; s++) {
+            bits += (long) distanceFreq[s] * (distanceBits[s] + DIST_EXTRA[s]);
+        }
+        return bits;
+    }
+
+    /** Number of code length code lengths sent, at least 4. */
+    private int lengthCodeCount() {
+        int n = LENGTH_CODES;
+        while (n > 4 && lengthBits[LENGTH_ORDER[n - 1]] == 0) {
+            n--;
+        }
+        return n;
+    }
+
+    private void writeHuffman() {
+        int nLiterals = LITERAL_CODES;
+        while (nLiterals > 257 && literalBits[nLiterals - 1] == 0) {
+            nLiterals--;
+        }
+        int nDistances = DISTANCE_CODES;
+        while (nDistances > 1 && distanceBits[nDistances - 1] == 0) {
+            nDistances--;
+        }
+        int nLengths = lengthCodeCount();
+
+        writeBits(1, 1);        // last block
+        writeBits(2, 2);        // dynamic Huffman codes
+        writeBits(nLiterals - 257, 5);
+        writeBits(nDistances - 1, 5);
+        writeBits(nLengths - 4, 4);
+        for (int k = 0; k < nLengths; k++) {
+            writeBits(lengthBits[LENGTH_ORDER[k]], 3);
+        }
+        for (int k = 0; k < nLengthTokens; k++) {
+            int symbol = lengthTokens[k] & 0xff;
+            int repeat = lengthTokens[k] >>> 8;
+            writeBits(lengthCodes[symbol], lengthBits[symbol]);
+            if (symbol == 16) {
+                writeBits(repeat - 3, 2);
+            } else if (symbol == 17) {
+                writeBits(repeat - 3, 3);
+            } else if (symbol == 18) {
+                writeBits(repeat - 11, 7);
+            }
+        }
+
+        for (int k = 0; k < nTokens; k++) {
+            int token = tokens[k];
+            int distance = token >>> 9;
+            if (distance == 0) {
+                writeBits(literalCodes[token], literalBits[token]);
+            } else {
+                int length = token & 0x1ff;
+                int lc = LENGTH_CODE[length];
+                writeBits(literalCodes[257 + lc], literalBits[257 + lc]);
+                if (LENGTH_EXTRA[lc] > 0) {
+                    writeBits(length - LENGTH_BASE[lc], LENGTH_EXTRA[lc]);
+                }
+                int dc = distanceCode(distance);
+                writeBits(distanceCodes[dc], distanceBits[dc]);
+                if (DIST_EXTRA[dc] > 0) {
+                    writeBits(distance - DIST_BASE[dc], DIST_EXTRA[dc]);
+                }
+            }
+        }
+        writeBits(literalCodes[END_OF_BLOCK], literalBits[END_OF_BLOCK]);
+        if (bitCount > 0) {
+            out[outPos++] = (byte) bitBuffer;
+            bitBuffer = 0;
+            bitCount = 0;
+        }
+    }
+
+    private void writeStored(byte[] data, int len) {
+        int pos = 0;
+        do {
+            int n = Math.min(MAX_STORED, len - pos);
+            out[outPos++] = (byte) (pos + n == len ? 1 : 0);
+            out[outPos++] = (byte) n;
+            out[outPos++] = (byte) (n >> 8);
+            out[outPos++] = (byte) ~n;
+            out[outPos++] = (byte) (~n >> 8);
+            System.arraycopy(data, pos, out, outPos, n);
+            outPos += n;
+            pos += n;
+        } while (pos < len);
+    }
+
+    private void writeBits(int value, int n) {
+        bitBuffer |= (long) value << bitCount;
+        bitCount += n;
+        while (bitCount >= 8) {
+            out[outPos++] = (byte) bitBuffer;
+            bitBuffer >>>= 8;
+            bitCount -= 8;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package littlemansoftware.bpppngencoder.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays the frames of an {@link ApngEncoder} animation onto a canvas
+ * and compares them with the frames that went in.
+ */
+public class ApngEncoderTest {
+
+    @Test
+    public void replaysFrames() throws Exception {
+        Random random = new Random(1);
+        for (int test = 0; test < 100; test++) {
+            int width = 1 + random.nextInt(100);
+            int height = 1 + random.nextInt(40);
+            ApngEncoder encoder = new ApngEncoder(width, height);
+            encoder.setCompressionSettings(new CompressionSettings(random.nextInt(10), 0, random.nextInt(6)));
+            encoder.setIdatSize(random.nextInt(3) == 0 ? 0 : 1 + random.nextInt(50));
+
+            byte[] frame = TestImages.noise(width, height, test);
+            List<byte[]> frames = new ArrayList<byte[]>();
+            List<Integer> delays = new ArrayList<Integer>();
+            int count = 1 + random.nextInt(12);
+            for (int k = 0; k < count; k++) {
+                if (k > 0 && random.nextInt(3) > 0) {
+                    for (int j = random.nextInt(5); j > 0; j--) {
+                        frame[random.nextInt(frame.length)] ^= (byte) random.nextInt();
+                    }
+                    TestImages.clearPadding(frame, width, height);
+                }
+                int delay = random.nextInt(4) == 0 ? 60000 : random.nextInt(500);
+                int last = frames.size() - 1;
+                if (k > 0 && Arrays.equals(frame, frames.get(last))
+                        && delays.get(last) + delay <= ApngEncoder.MAX_DELAY) {
+                    // an unchanged frame lengthens the one before
+                    delays.set(last, delays.get(last) + delay);
+                } else {
+                    frames.add(frame.clone());
+                    delays.add(delay);
+                }
+                encoder.addFrame(frame, delay);
+            }
+            assertEquals(frames.size(), encoder.getFrameCount());
+
+            byte[] png = encoder.finish();
+            List<Frame> replayed = replay(png, width, height);
+            assertEquals(frames.size(), replayed.size());
+            for (int k = 0; k < frames.size(); k++) {
+                assertArrayEquals("frame " + k, frames.get(k), replayed.get(k).canvas);
+                assertEquals("delay of frame " + k, (int) delays.get(k), replayed.get(k).delay);
+            }
+            // without APNG support the first frame is the image
+            assertArrayEquals(frames.get(0), new PngDecoder().decode(png));
+        }
+    }
+
+    @Test
+    public void writesOnlyTheChangedRegion() throws Exception {
+        int width = 240;
+        int height = 64;
+        int rowBytes = BitPacker.bytesPerRow(width);
+        byte[] frame = TestImages.text(width, height, 1);
+        ApngEncoder encoder = new ApngEncoder(width, height);
+        encoder.addFrame(frame, 1000);
+        // flip pixels 100 of row 30 and 130 of row 33
+        frame[30 * rowBytes + 12] ^= 0x08;
+        frame[33 * rowBytes + 16] ^= 0x20;
+        encoder.addFrame(frame, 1000);
+
+        List<Frame> replayed = replay(encoder.finish(), width, height);
+        Frame second = replayed.get(1);
+        assertEquals(96, second.x);
+        assertEquals(30, second.y);
+        assertEquals(40, second.width);
+        assertEquals(4, second.height);
+        assertArrayEquals(frame, second.canvas);
+    }
+
+    @Test
+    public void finishWithoutFramesGivesNull() {
+        assertNull(new ApngEncoder(8, 8).finish());
+    }
+
+    /** A frame as shown, and where its data went. */
+    private static final class Frame {
+        byte[] canvas;
+        int delay;
+        int x, y, width, height;
+    }
+
+    /**
+     * Decode an animation, checking chunk CRCs, sequence numbers and the
+     * frame count of acTL, and give the canvas after each frame.
+     */
+    private static List<Frame> replay(byte[] png, int width, int height)
+            throws IOException, DataFormatException {
+        int rowBytes = BitPacker.bytesPerRow(width);
+        byte[] canvas = new byte[rowBytes * height];
+        List<Frame> frames = new ArrayList<Frame>();
+        CRC32 crc = new CRC32();
+        Frame frame = null;
+        ByteArrayOutputStream data = null;
+        int sequence = 0;
+        int frameCount = -1;
+        int pos = ChunkWriter.SIGNATURE.length;
+        while (pos < png.length) {
+            int length = int4(png, pos);
+            String type = new String(png, pos + 4, 4, "ISO-8859-1");
+            int p = pos + 8;
+            crc.reset();
+            crc.update(png, pos + 4, length + 4);
+            assertEquals("CRC of " + type, (int) crc.getValue(), int4(png, p + length));
+            if (type.equals("acTL")) {
+                frameCount = int4(png, p);
+            } else if (type.equals("fcTL") || type.equals("IEND")) {
+                if (frame != null) {
+                    draw(canvas, rowBytes, frame, data.toByteArray());
+                    frame.canvas = canvas.clone();
+                    frames.add(frame);
+                }
+                if (type.equals("fcTL")) {
+                    assertEquals(sequence++, int4(png, p));
+                    frame = new Frame();
+                    frame.width = int4(png, p + 4);
+                    frame.height = int4(png, p + 8);
+                    frame.x = int4(png, p + 12);
+                    frame.y = int4(png, p + 16);
+                    assertEquals(1000, (png[p + 22] & 0xff) << 8 | (png[p + 23] & 0xff));
+                    frame.delay = (png[p + 20] & 0xff) << 8 | (png[p + 21] & 0xff);
+                    assertEquals(ChunkWriter.DISPOSE_NONE, png[p + 24]);
+                    assertEquals(ChunkWriter.BLEND_SOURCE, png[p + 25]);
+                    assertEquals("byte aligned", 0, frame.x % 8);
+                    assertTrue(frame.x + frame.width <= width && frame.y + frame.height <= height);
+                    data = new ByteArrayOutputStream();
+                }
+            } else if (type.equals("IDAT")) {
+                assertEquals("IDAT belongs to the first frame", 0, frames.size());
+                data.write(png, p, length);
+            } else if (type.equals("fdAT")) {
+                assertEquals(sequence++, int4(png, p));
+                data.write(png, p + 4, length - 4);
+            }
+            pos = p + length + 4;
+        }
+        assertEquals(frameCount, frames.size());
+        return frames;
+    }
+
+    /** Inflate and unfilter a frame's data onto the canvas. */
+    private static void draw(byte[] canvas, int rowBytes, Frame frame, byte[] data)
+            throws DataFormatException {
+        int frameBytes = BitPacker.bytesPerRow(frame.width);
+        byte[] scan = SparseDeflaterTest.inflate(data, data.length, (frameBytes + 1) * frame.height);
+        byte[] up = new byte[frameBytes];
+        for (int r = 0; r < frame.height; r++) {
+            int p = r * (frameBytes + 1);
+            int type = scan[p];
+            for (int i = 0; i < frameBytes; i++) {
+                int a = i > 0 ? scan[p + i] & 0xff : 0;
+                int b = up[i] & 0xff;
+                int c = i > 0 ? up[i - 1] & 0xff : 0;
+                int x = scan[p + 1 + i] & 0xff;
+                switch (type) {
+                    case ScanlineFilter.SUB:
+                        x += a;
+                        break;
+                    case ScanlineFilter.UP:
+                        x += b;
+                        break;
+                    case ScanlineFilter.AVERAGE:
+                        x += (a + b) >> 1;
+                        break;
+                    case ScanlineFilter.PAETH:
+                        x += ScanlineFilter.paeth(a, b, c);
+                        break;
+                    default:
+                        break;
+                }
+                scan[p + 1 + i] = (byte) x;
+            }
+            System.arraycopy(scan, p + 1, up, 0, frameBytes);
+            System.arraycopy(scan, p + 1, canvas, (frame.y + r) * rowBytes + frame.x / 8, frameBytes);
+        }
+    }
+
+    private static int int4(byte[] b, int p) {
+        return (b[p] & 0xff) << 24 | (b[p + 1] & 0xff) << 16 | (b[p + 2] & 0xff) << 8 | (b[p + 3] & 0xff);
+    }
+}
@@ -0,0 +1,154 @@
+package littlemansoftware.bpppngencoder.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Frames that keep part of the last frame's zlib stream must still be
+ * whole, valid streams, and valid PNGs around them.
+ */
+public class IncrementalDeflaterTest {
+
+    private static final int WIDTH = 144;
+    private static final int HEIGHT = 168;
+
+    /** Rows kept when the bottom 10 change: the segments of 16 above row 158. */
+    private static final int KEPT_ROWS = 144;
+
+    @Test
+    public void splicedStreamInflates() throws DataFormatException {
+        EncoderContext ctx = new EncoderContext();
+        IncrementalDeflater deflater = new IncrementalDeflater(16);
+        byte[] a = TestImages.text(WIDTH, HEIGHT, 1);
+        byte[] b = changeBottomRows(a, 10);
+        for (int filter = ScanlineFilter.NONE; filter <= ScanlineFilter.ADAPTIVE; filter++) {
+            deflater.reset();
+            assertInflates(deflater, ctx, a, filter, 9);
+            assertEquals(0, deflater.getReusedRows());
+            assertInflates(deflater, ctx, b, filter, 9);
+            assertEquals("filter " + filter, KEPT_ROWS, deflater.getReusedRows());
+        }
+    }
+
+    @Test
+    public void unchangedFrameKeepsEverything() throws DataFormatException {
+        EncoderContext ctx = new EncoderContext();
+        IncrementalDeflater deflater = new IncrementalDeflater(16);
+        byte[] a = TestImages.text(WIDTH, HEIGHT, 2);
+        assertInflates(deflater, ctx, a, ScanlineFilter.PAETH, 6);
+        assertInflates(deflater, ctx, a, ScanlineFilter.PAETH, 6);
+        assertEquals(HEIGHT, deflater.getReusedRows());
+    }
+
+    @Test
+    public void settingsChangeRestartsStream() throws DataFormatException {
+        EncoderContext ctx = new EncoderContext();
+        IncrementalDeflater deflater = new IncrementalDeflater(16);
+        byte[] a = TestImages.text(WIDTH, HEIGHT, 3);
+        byte[] b = changeBottomRows(a, 10);
+        assertInflates(deflater, ctx, a, ScanlineFilter.NONE, 9);
+
+        // another level: the kept segments were deflated at the old one
+        assertInflates(deflater, ctx, b, ScanlineFilter.NONE, 1);
+        assertEquals(0, deflater.getReusedRows());
+
+        // another filter: the kept segments hold other filtered bytes
+        assertInflates(deflater, ctx, a, ScanlineFilter.UP, 1);
+        assertEquals(0, deflater.getReusedRows());
+
+        assertInflates(deflater, ctx, b, ScanlineFilter.UP, 1);
+        assertEquals(KEPT_ROWS, deflater.getReusedRows());
+    }
+
+    @Test
+    public void encoderSplicesValidPngs() throws IOException {
+        final int[] reused = new int[1];
+        PngEncoder encoder = new PngEncoder();
+        encoder.setCompressionLevel(9);
+        encoder.setFilter(ScanlineFilter.PAETH);
+        encoder.setIncrementalRows(16);
+        encoder.setIdatSize(500);
+        encoder.setEncodeListener(new EncodeListener() {
+            @Override
+            public void onEncoded(EncodeMetrics metrics) {
+                reused[0] = metrics.getReusedRows();
+            }
+        });
+
+        byte[] a = TestImages.text(WIDTH, HEIGHT, 4);
+        encoder.setPackedImage(a, WIDTH, HEIGHT);
+        PngEncoderTest.assertDecodes(a, encoder.pngEncode(), "frame A");
+        assertEquals(0, reused[0]);
+
+        byte[] b = changeBottomRows(a, 10);
+        encoder.setPackedImage(b, WIDTH, HEIGHT);
+        // the decoder checks each IDAT's CRC and the Adler-32 of the stream
+        PngEncoderTest.assertDecodes(b, encoder.pngEncode(), "frame B");
+        assertTrue(reused[0] > 0);
+
+        encoder.setPackedImage(a, WIDTH, HEIGHT);
+        PngEncoderTest.assertFitsMaxEncodedSize(a, encoder, "frame A again");
+        assertTrue(reused[0] > 0);
+    }
+
+    @Test
+    public void fitsMaxEncodedSize() throws IOException {
+        int[][] sizes = {{7, 3}, {1, 40}, {144, 168}};
+        for (int[] size : sizes) {
+            for (int level = 0; level <= 9; level += 9) {
+                for (int segmentRows = 1; segmentRows <= 16; segmentRows *= 4) {
+                    PngEncoder encoder = new PngEncoder();
+                    encoder.setCompressionLevel(level);
+                    encoder.setIncrementalRows(segmentRows);
+                    for (int frame = 0; frame < 2; frame++) {
+                        byte[] rows = TestImages.noise(size[0], size[1], frame);
+                        encoder.setPackedImage(rows, size[0], size[1]);
+                        PngEncoderTest.assertFitsMaxEncodedSize(rows, encoder,
+                                size[0] + "x" + size[1] + " level " + level + " segment " + segmentRows);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A copy of the rows with the last few inverted.
+     */
+    private static byte[] changeBottomRows(byte[] rows, int count) {
+        byte[] changed = rows.clone();
+        int rowBytes = BitPacker.bytesPerRow(WIDTH);
+        for (int i = (HEIGHT - count) * rowBytes; i < changed.length; i++) {
+            changed[i] = (byte) ~changed[i];
+        }
+        TestImages.clearPadding(changed, WIDTH, HEIGHT);
+        return changed;
+    }
+
+    /**
+     * Deflate a frame and check the stream inflates to its filtered scanlines.
+     */
+    private static void assertInflates(IncrementalDeflater deflater, EncoderContext ctx, byte[] rows,
+                                       int filter, int level) throws DataFormatException {
+        int rowBytes = BitPacker.bytesPerRow(WIDTH);
+        int len = (rowBytes + 1) * HEIGHT;
+        byte[] scan = new byte[len];
+        for (int y = 0; y < HEIGHT; y++) {
+            System.arraycopy(rows, y * rowBytes, scan, y * (rowBytes + 1) + 1, rowBytes);
+        }
+        byte[] expected = scan.clone();
+        if (filter != ScanlineFilter.NONE) {
+            ScanlineFilter.filterRows(expected, 0, HEIGHT, rowBytes, filter, null, null);
+        }
+
+        int n = deflater.deflate(scan, len, HEIGHT, filter, level, Deflater.DEFAULT_STRATEGY, ctx);
+        assertTrue("full flush supported", n > 0);
+        assertArrayEquals(expected, SparseDeflaterTest.inflate(deflater.getStream(), n, len));
+    }
+}
@@ -0,0 +1,76 @@
+package littlemansoftware.bpppngencoder.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A shared {@link PngCache} must only hand back PNGs encoded the way
+ * the asking encoder would have encoded them.
+ */
+public class PngCacheTest {
+
+    @Test
+    public void hitsForSameSettings() throws IOException {
+        PngCache cache = new PngCache(8, 1 << 20);
+        byte[] rows = TestImages.text(144, 168, 1);
+        PngEncoder first = PngEncoderTest.encoder(rows, 144, 168, 9, ScanlineFilter.NONE);
+        first.setCache(cache);
+        PngEncoder second = PngEncoderTest.encoder(rows, 144, 168, 9, ScanlineFilter.NONE);
+        second.setCache(cache);
+
+        byte[] png = first.pngEncode();
+        assertArrayEquals(png, second.pngEncode());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void missesForOtherEngineOrIdatSize() throws IOException {
+        PngCache cache = new PngCache(8, 1 << 20);
+        byte[] rows = TestImages.text(144, 168, 2);
+        PngEncoder zlib = PngEncoderTest.encoder(rows, 144, 168, 9, ScanlineFilter.NONE);
+        zlib.setCache(cache);
+        byte[] zlibPng = zlib.pngEncode();
+
+        PngEncoder sparse = PngEncoderTest.encoder(rows, 144, 168, 9, ScanlineFilter.NONE);
+        sparse.setCache(cache);
+        sparse.setCompressionEngine(PngEncoder.ENGINE_SPARSE);
+        sparse.setIdatSize(100);
+        byte[] sparsePng = sparse.pngEncode();
+        assertEquals(0, cache.getHits());
+        assertFalse(Arrays.equals(zlibPng, sparsePng));
+        PngEncoderTest.assertDecodes(rows, sparsePng, "sparse");
+        assertTrue("IDAT chunks of at most 100 bytes", largestIdat(sparsePng) <= 100);
+
+        PngEncoder split = PngEncoderTest.encoder(rows, 144, 168, 9, ScanlineFilter.NONE);
+        split.setCache(cache);
+        split.setIdatSize(100);
+        split.pngEncode();
+        assertEquals(0, cache.getHits());
+
+        // each combination is now cached on its own
+        assertArrayEquals(sparsePng, sparse.pngEncode());
+        assertArrayEquals(zlibPng, zlib.pngEncode());
+        assertEquals(2, cache.getHits());
+    }
+
+    private static int largestIdat(byte[] png) {
+        int largest = 0;
+        int pos = ChunkWriter.SIGNATURE.length;
+        while (pos < png.length) {
+            int length = (png[pos] & 0xff) << 24 | (png[pos + 1] & 0xff) << 16
+                    | (png[pos + 2] & 0xff) << 8 | (png[pos + 3] & 0xff);
+            if (png[pos + 4] == 'I' && png[pos + 5] == 'D') {
+                largest = Math.max(largest, length);
+            }
+            pos += length + 12;
+        }
+        return largest;
+    }
+}
@@ -0,0 +1,81 @@
+package littlemansoftware.bpppngencoder.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Damaged PNGs that {@link PngDecoder} must refuse.
+ */
+public class PngDecoderTest {
+
+    @Test
+    public void rejectsImageDataWithoutAdler32() throws IOException {
+        byte[] rows = TestImages.text(144, 168, 1);
+        byte[] png = PngEncoderTest.encoder(rows, 144, 168, 9, ScanlineFilter.NONE).pngEncode();
+        assertArrayEquals(rows, new PngDecoder().decode(png));
+
+        assertRejected(dropAdler32(png), "Adler-32");
+    }
+
+    @Test
+    public void rejectsWrongAdler32() throws IOException {
+        byte[] rows = TestImages.text(64, 32, 2);
+        byte[] png = PngEncoderTest.encoder(rows, 64, 32, 9, ScanlineFilter.NONE).pngEncode();
+        int idat = findChunk(png, ChunkWriter.IDAT);
+        int length = int4(png, idat);
+        png[idat + 8 + length - 1] ^= 1;
+        fixCrc(png, idat);
+        assertRejected(png, "Damaged");
+    }
+
+    /**
+     * The PNG with the last four bytes of its IDAT cut off, length and CRC fixed up.
+     */
+    private static byte[] dropAdler32(byte[] png) {
+        int idat = findChunk(png, ChunkWriter.IDAT);
+        int length = int4(png, idat);
+        byte[] cut = new byte[png.length - 4];
+        System.arraycopy(png, 0, cut, 0, idat + 8 + length - 4);
+        System.arraycopy(png, idat + 8 + length + 4, cut, idat + 8 + length, png.length - idat - 8 - length - 4);
+        ChunkWriter.putInt4(cut, idat, length - 4);
+        fixCrc(cut, idat);
+        return cut;
+    }
+
+    private static void assertRejected(byte[] png, String reason) {
+        try {
+            new PngDecoder().decode(png);
+            fail("decoded a PNG with a bad " + reason);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(reason));
+        }
+    }
+
+    private static int findChunk(byte[] png, byte[] type) {
+        int pos = ChunkWriter.SIGNATURE.length;
+        while (true) {
+            int length = int4(png, pos);
+            if (png[pos + 4] == type[0] && png[pos + 5] == type[1]
+                    && png[pos + 6] == type[2] && png[pos + 7] == type[3]) {
+                return pos;
+            }
+            pos += length + 12;
+        }
+    }
+
+    private static void fixCrc(byte[] png, int chunk) {
+        int length = int4(png, chunk);
+        byte[] type = {png[chunk + 4], png[chunk + 5], png[chunk + 6], png[chunk + 7]};
+        ChunkWriter.putInt4(png, chunk + 8 + length,
+                new ChunkWriter(0).crc(type, png, chunk + 8, length));
+    }
+
+    private static int int4(byte[] b, int p) {
+        return (b[p] & 0xff) << 24 | (b[p + 1] & 0xff) << 16 | (b[p + 2] & 0xff) << 8 | (b[p + 3] & 0xff);
+    }
+}
@@ -0,0 +1,220 @@
+package littlemansoftware.bpppngencoder.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Encodes packed images with each mode of the encoder and reads them
+ * back with {@link PngDecoder}.
+ */
+public class PngEncoderTest {
+
+    private static final int[] LEVELS = {0, 1, 9};
+
+    private static final int[][] SIZES = {{1, 1}, {7, 3}, {9, 9}, {144, 168}};
+
+    @Test
+    public void roundTripsEveryFilterAndLevel() throws IOException {
+        for (int[] size : SIZES) {
+            byte[] rows = TestImages.text(size[0], size[1], 1);
+            for (int filter = ScanlineFilter.NONE; filter <= ScanlineFilter.ADAPTIVE; filter++) {
+                for (int level : LEVELS) {
+                    PngEncoder encoder = encoder(rows, size[0], size[1], level, filter);
+                    assertDecodes(rows, encoder.pngEncode(), "filter " + filter + " level " + level);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void roundTripsInterlaced() throws IOException {
+        for (int[] size : SIZES) {
+            byte[] rows = TestImages.text(size[0], size[1], 2);
+            for (int filter = ScanlineFilter.NONE; filter <= ScanlineFilter.ADAPTIVE; filter++) {
+                for (int level : LEVELS) {
+                    PngEncoder encoder = encoder(rows, size[0], size[1], level, filter);
+                    encoder.setInterlaced(true);
+                    assertDecodes(rows, encoder.pngEncode(), "interlaced filter " + filter + " level " + level);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void roundTripsSparseEngine() throws IOException {
+        for (int[] size : SIZES) {
+            for (int seed = 0; seed < 2; seed++) {
+                byte[] rows = seed == 0 ? TestImages.text(size[0], size[1], 3)
+                        : TestImages.noise(size[0], size[1], 3);
+                for (int filter = ScanlineFilter.NONE; filter <= ScanlineFilter.ADAPTIVE; filter++) {
+                    PngEncoder encoder = encoder(rows, size[0], size[1], 9, filter);
+                    encoder.setCompressionEngine(PngEncoder.ENGINE_SPARSE);
+                    assertDecodes(rows, encoder.pngEncode(), "sparse filter " + filter);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void roundTripsParallel() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            byte[] rows = TestImages.text(640, 480, 4);
+            for (int filter = ScanlineFilter.NONE; filter <= ScanlineFilter.ADAPTIVE; filter++) {
+                for (int level : LEVELS) {
+                    PngEncoder encoder = encoder(rows, 640, 480, level, filter);
+                    encoder.setParallelExecutor(executor);
+                    encoder.setParallelBandSize(4096);
+                    assertDecodes(rows, encoder.pngEncode(), "parallel filter " + filter + " level " + level);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void roundTripsIncremental() throws IOException {
+        for (int[] size : SIZES) {
+            for (int filter = ScanlineFilter.NONE; filter <= ScanlineFilter.ADAPTIVE; filter++) {
+                for (int level : LEVELS) {
+                    PngEncoder encoder = new PngEncoder();
+                    encoder.setCompressionLevel(level);
+                    encoder.setFilter(filter);
+                    encoder.setIncrementalRows(2);
+                    for (int frame = 0; frame < 3; frame++) {
+                        byte[] rows = TestImages.text(size[0], size[1], frame);
+                        encoder.setPackedImage(rows, size[0], size[1]);
+                        assertDecodes(rows, encoder.pngEncode(), "incremental filter " + filter + " level " + level);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void encodeIntoMatchesPngEncode() throws IOException {
+        byte[] rows = TestImages.text(144, 168, 5);
+        PngEncoder encoder = encoder(rows, 144, 168, 9, ScanlineFilter.PAETH);
+        byte[] png = encoder.pngEncode();
+        byte[] dst = new byte[encoder.maxEncodedSize() + 3];
+        int n = encoder.encodeInto(dst, 3);
+        assertEquals(png.length, n);
+        byte[] copy = new byte[n];
+        System.arraycopy(dst, 3, copy, 0, n);
+        assertArrayEquals(png, copy);
+    }
+
+    @Test
+    public void interlacedFitsMaxEncodedSize() throws IOException {
+        for (int width = 1; width <= 24; width++) {
+            for (int height = 1; height <= 24; height++) {
+                byte[] rows = TestImages.noise(width, height, width * 100 + height);
+                for (int level : LEVELS) {
+                    PngEncoder encoder = encoder(rows, width, height, level, ScanlineFilter.NONE);
+                    encoder.setInterlaced(true);
+                    assertFitsMaxEncodedSize(rows, encoder, width + "x" + height + " level " + level);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void parallelFitsMaxEncodedSize() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            int[][] sizes = {{1, 59}, {7, 30}, {64, 60}};
+            for (int[] size : sizes) {
+                byte[] rows = TestImages.noise(size[0], size[1], 1);
+                for (int level : LEVELS) {
+                    for (int bandSize = 1; bandSize <= 100; bandSize *= 10) {
+                        PngEncoder encoder = encoder(rows, size[0], size[1], level, ScanlineFilter.NONE);
+                        encoder.setParallelExecutor(executor);
+                        encoder.setParallelBandSize(bandSize);
+                        assertFitsMaxEncodedSize(rows, encoder,
+                                size[0] + "x" + size[1] + " level " + level + " band " + bandSize);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void ancillaryChunksFitMaxEncodedSize() throws IOException {
+        StringBuilder noise = new StringBuilder();
+        Random random = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            noise.append((char) random.nextInt(256));
+        }
+        String[] texts = {"", "Hi", "1BppPngEncoder", noise.toString()};
+        for (int size = 1; size <= 9; size++) {
+            byte[] rows = TestImages.noise(size, size, size);
+            for (int chunk = 0; chunk < 4; chunk++) {
+                for (String text : texts) {
+                    PngEncoder encoder = encoder(rows, size, size, 9, ScanlineFilter.NONE);
+                    switch (chunk) {
+                        case 0:
+                            encoder.setDpi(300);
+                            break;
+                        case 1:
+                            encoder.addText("Title", text);
+                            break;
+                        case 2:
+                            encoder.addCompressedText("Title", text);
+                            break;
+                        default:
+                            encoder.setModificationTime(1234567890000L);
+                            break;
+                    }
+                    assertFitsMaxEncodedSize(rows, encoder,
+                            size + "x" + size + " chunk " + chunk + " text of " + text.length());
+                }
+            }
+            PngEncoder encoder = encoder(rows, size, size, 0, ScanlineFilter.NONE);
+            encoder.setDpi(72);
+            encoder.addText("Software", "1BppPngEncoder");
+            encoder.addCompressedText("Comment", "");
+            encoder.addCompressedText("Description", noise.toString());
+            encoder.setModificationTime(0);
+            assertFitsMaxEncodedSize(rows, encoder, size + "x" + size + " every chunk");
+        }
+    }
+
+    /**
+     * Check that encodeInto a buffer of maxEncodedSize() bytes holds the PNG.
+     */
+    static void assertFitsMaxEncodedSize(byte[] rows, PngEncoder encoder, String message) throws IOException {
+        byte[] dst = new byte[encoder.maxEncodedSize()];
+        int n = encoder.encodeInto(dst, 0);
+        byte[] png = new byte[n];
+        System.arraycopy(dst, 0, png, 0, n);
+        assertDecodes(rows, png, message);
+    }
+
+    /**
+     * An encoder of a packed image.
+     */
+    static PngEncoder encoder(byte[] rows, int width, int height, int level, int filter) {
+        PngEncoder encoder = new PngEncoder();
+        encoder.setCompressionLevel(level);
+        encoder.setFilter(filter);
+        encoder.setPackedImage(rows, width, height);
+        return encoder;
+    }
+
+    /**
+     * Check that a PNG decodes to the packed rows.
+     */
+    static void assertDecodes(byte[] rows, byte[] png, String message) throws IOException {
+        assertArrayEquals(message, rows, new PngDecoder().decode(png));
+    }
+}
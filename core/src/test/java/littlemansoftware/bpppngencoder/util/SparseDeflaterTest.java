@@ -0,0 +1,108 @@
+package littlemansoftware.bpppngencoder.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads the output of {@link SparseDeflater} back with java.util.zip.
+ */
+public class SparseDeflaterTest {
+
+    @Test
+    public void inflatesToScanlines() throws DataFormatException {
+        EncoderContext ctx = new EncoderContext();
+        for (int height = 1; height < 200; height += 37) {
+            byte[] scan = scanlines(TestImages.text(144, height, height), 144, height);
+            int n = ctx.sparseDeflater().deflate(ctx, scan, scan.length, scan.length / height);
+            assertArrayEquals(scan, inflate(ctx.spare(n), n, scan.length));
+        }
+    }
+
+    @Test
+    public void inflatesRandomData() throws DataFormatException {
+        EncoderContext ctx = new EncoderContext();
+        Random random = new Random(1);
+        for (int i = 0; i < 300; i++) {
+            byte[] data = new byte[random.nextInt(3000)];
+            // short runs of few byte values, like packed rows
+            for (int p = 0; p < data.length; p++) {
+                data[p] = random.nextInt(4) == 0 ? (byte) random.nextInt(4) : p > 0 ? data[p - 1] : 0;
+            }
+            int stride = random.nextInt(3) == 0 ? 0 : 1 + random.nextInt(40);
+            int n = ctx.sparseDeflater().deflate(ctx, data, data.length, stride);
+            assertArrayEquals(data, inflate(ctx.spare(n), n, data.length));
+        }
+    }
+
+    @Test
+    public void storesNoise() throws DataFormatException {
+        EncoderContext ctx = new EncoderContext();
+        byte[] noise = new byte[100000];
+        new Random(2).nextBytes(noise);
+        int n = ctx.sparseDeflater().deflate(ctx, noise, noise.length, 0);
+        byte[] stream = ctx.spare(n);
+        // BTYPE of the first block, after the two byte zlib header
+        assertEquals("stored block", 0, (stream[2] >> 1) & 3);
+        // two stored blocks of at most 65535 bytes, header and Adler-32
+        assertEquals(noise.length + 2 * 5 + 6, n);
+        assertArrayEquals(noise, inflate(stream, n, noise.length));
+    }
+
+    @Test
+    public void compressesText() throws DataFormatException {
+        EncoderContext ctx = new EncoderContext();
+        byte[] scan = scanlines(TestImages.text(640, 480, 3), 640, 480);
+        int n = ctx.sparseDeflater().deflate(ctx, scan, scan.length, scan.length / 480);
+        Deflater deflater = new Deflater(9);
+        deflater.setInput(scan);
+        deflater.finish();
+        int zlib = deflater.deflate(new byte[scan.length * 2]);
+        deflater.end();
+        assertTrue("sparse " + n + " against zlib " + zlib, n <= zlib + zlib / 10);
+        assertArrayEquals(scan, inflate(ctx.spare(n), n, scan.length));
+    }
+
+    /**
+     * Packed rows with a FILTER_NONE type byte in front of each.
+     */
+    private static byte[] scanlines(byte[] rows, int width, int height) {
+        int rowBytes = BitPacker.bytesPerRow(width);
+        byte[] scan = new byte[(rowBytes + 1) * height];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(rows, y * rowBytes, scan, y * (rowBytes + 1) + 1, rowBytes);
+        }
+        return scan;
+    }
+
+    /**
+     * Inflate a whole zlib stream, checking it ends where it should.
+     */
+    static byte[] inflate(byte[] stream, int n, int expected) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stream, 0, n);
+            byte[] out = new byte[expected];
+            int done = 0;
+            while (done < expected) {
+                int k = inflater.inflate(out, done, expected - done);
+                assertTrue("stream ends early", k > 0 || !inflater.needsInput());
+                done += k;
+            }
+            // the Adler-32 is checked when the stream ends
+            assertEquals(0, inflater.inflate(new byte[1]));
+            assertTrue("stream not finished", inflater.finished());
+            assertEquals("bytes after the stream", 0, inflater.getRemaining());
+            return out;
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package littlemansoftware.bpppngencoder.util;
+
+import java.util.Random;
+
+/**
+ * Packed 1bpp images for the tests, in the layout of
+ * {@link PngEncoder#setPackedImage(byte[], int, int)}.
+ */
+final class TestImages {
+
+    private TestImages() {
+    }
+
+    /**
+     * A framed display with blocks of "text", mostly black like an LCD screen.
+     *
+     * @param width Image width.
+     * @param height Image height.
+     * @param seed Picks the text.
+     * @return the packed rows
+     */
+    static byte[] text(int width, int height, int seed) {
+        int rowBytes = BitPacker.bytesPerRow(width);
+        byte[] rows = new byte[rowBytes * height];
+        Random random = new Random(seed);
+        for (int x = 0; x < width; x++) {
+            set(rows, rowBytes, x, 0);
+            set(rows, rowBytes, x, height - 1);
+        }
+        for (int y = 0; y < height; y++) {
+            set(rows, rowBytes, 0, y);
+            set(rows, rowBytes, width - 1, y);
+        }
+        for (int y = 2; y + 10 < height; y += 12) {
+            for (int x = 2; x + 6 < width; x += 8) {
+                int glyph = random.nextInt();
+                for (int i = 0; i < 7 * 6; i++) {
+                    if ((glyph >>> (i % 31) & 1) != 0) {
+                        set(rows, rowBytes, x + i % 6, y + 2 + i / 6);
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Random bits, nothing for deflate to find.
+     *
+     * @param width Image width.
+     * @param height Image height.
+     * @param seed Seeds the bits.
+     * @return the packed rows, padding bits 0
+     */
+    static byte[] noise(int width, int height, int seed) {
+        int rowBytes = BitPacker.bytesPerRow(width);
+        byte[] rows = new byte[rowBytes * height];
+        new Random(seed).nextBytes(rows);
+        clearPadding(rows, width, height);
+        return rows;
+    }
+
+    /**
+     * Clear the bits past the width in the last byte of each row.
+     *
+     * @param rows The packed rows.
+     * @param width Image width.
+     * @param height Image height.
+     */
+    static void clearPadding(byte[] rows, int width, int height) {
+        int rowBytes = BitPacker.bytesPerRow(width);
+        int mask = 0xff << (rowBytes * 8 - width);
+        for (int y = 0; y < height; y++) {
+            rows[y * rowBytes + rowBytes - 1] &= (byte) mask;
+        }
+    }
+
+    /**
+     * Light a pixel.
+     *
+     * @param rows The packed rows.
+     * @param rowBytes Bytes per row.
+     * @param x Column.
+     * @param y Row.
+     */
+    static void set(byte[] rows, int rowBytes, int x, int y) {
+        rows[y * rowBytes + (x >> 3)] |= (byte) (0x80 >>> (x & 7));
+    }
+}